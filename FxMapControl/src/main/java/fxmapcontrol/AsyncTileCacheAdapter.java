@@ -0,0 +1,106 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import fxmapcontrol.ITileCache.CacheItem;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * IAsyncTileCache adapter for a synchronous ITileCache. Lookups are performed on a small pool of threads, in the
+ * order in which they were requested, and are skipped when they were cancelled before they started.
+ * <p>
+ * Writes are performed synchronously on the calling thread, so that written items are immediately visible to
+ * subsequent lookups. Asynchronous writes are provided by wrapping the ITileCache in a WriteBehindTileCache.
+ */
+public class AsyncTileCacheAdapter implements IAsyncTileCache {
+
+    private static final int defaultMaxThreads = 4;
+
+    private static final ExecutorService defaultExecutor = Executors.newFixedThreadPool(defaultMaxThreads, runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ITileCache cache;
+    private final Executor executor;
+
+    public AsyncTileCacheAdapter(ITileCache cache) {
+        this(cache, defaultExecutor);
+    }
+
+    public AsyncTileCacheAdapter(ITileCache cache, Executor executor) {
+        if (cache == null) {
+            throw new IllegalArgumentException("cache must not be null");
+        }
+
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+
+        this.cache = cache;
+        this.executor = executor;
+    }
+
+    public final ITileCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public CompletableFuture<CacheItem> getAsync(String key) {
+        return lookup(() -> cache.get(key));
+    }
+
+    @Override
+    public CompletableFuture<Long> getExpirationAsync(String key) {
+        return lookup(() -> cache.getExpiration(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> setAsync(String key, CacheItem cacheItem) {
+        try {
+            cache.set(key, cacheItem);
+            return CompletableFuture.completedFuture(null);
+
+        } catch (Exception ex) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            result.completeExceptionally(ex);
+            return result;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> setExpirationAsync(String key, long expiration) {
+        try {
+            cache.setExpiration(key, expiration);
+            return CompletableFuture.completedFuture(null);
+
+        } catch (Exception ex) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            result.completeExceptionally(ex);
+            return result;
+        }
+    }
+
+    private <T> CompletableFuture<T> lookup(Supplier<T> supplier) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        executor.execute(() -> {
+            if (!result.isDone()) { // not cancelled
+                try {
+                    result.complete(supplier.get());
+                } catch (Exception ex) {
+                    result.completeExceptionally(ex);
+                }
+            }
+        });
+
+        return result;
+    }
+}
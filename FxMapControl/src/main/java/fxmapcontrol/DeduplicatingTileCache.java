@@ -0,0 +1,215 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ITileCache decorator that stores identical tile image buffers only once, e.g. ocean tiles or fully transparent
+ * overlay tiles. Buffers up to maxBlobSize bytes are stored as content-addressed blobs, with their SHA-256 hash as
+ * key, and the cache items of the tiles only hold a reference to the blob. Larger buffers are stored unchanged.
+ * <p>
+ * The backing cache must accept arbitrary keys, e.g. an ImageFileCache or a TilePackCache. When a blob has been
+ * evicted from the backing cache, the items that reference it are treated as missing.
+ */
+public class DeduplicatingTileCache implements ITileCache {
+
+    private static final int defaultMaxBlobSize = 16 * 1024;
+    private static final int maxKnownBlobs = 10000;
+    private static final long blobExpiration = 253402300799000L; // 9999/12/31 23:59:59 UTC
+    private static final String blobKeyPrefix = "_blobs/";
+    private static final byte[] referenceMarker = "BLOBREF:".getBytes(StandardCharsets.US_ASCII);
+    private static final int hashLength = 32;
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    private final ITileCache backingCache;
+    private final int maxBlobSize;
+    private final LinkedHashMap<String, Boolean> knownBlobs; // hashes of blobs that were recently written or read
+    private long deduplicatedCount;
+
+    public DeduplicatingTileCache(ITileCache backingCache) {
+        this(backingCache, defaultMaxBlobSize);
+    }
+
+    public DeduplicatingTileCache(ITileCache backingCache, int maxBlobSize) {
+        if (backingCache == null) {
+            throw new IllegalArgumentException("backingCache must not be null");
+        }
+
+        this.backingCache = backingCache;
+        this.maxBlobSize = maxBlobSize;
+
+        knownBlobs = new LinkedHashMap<String, Boolean>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxKnownBlobs;
+            }
+        };
+    }
+
+    public final ITileCache getBackingCache() {
+        return backingCache;
+    }
+
+    public final int getMaxBlobSize() {
+        return maxBlobSize;
+    }
+
+    /**
+     * Gets the number of written buffers that were already stored as blob.
+     */
+    public final synchronized long getDeduplicatedCount() {
+        return deduplicatedCount;
+    }
+
+    @Override
+    public CacheItem get(String key) {
+        CacheItem cacheItem = backingCache.get(key);
+        String hash = cacheItem != null ? getReferencedHash(cacheItem.getBuffer()) : null;
+
+        if (hash != null) {
+            CacheItem blob = backingCache.get(getBlobKey(hash));
+
+            synchronized (this) {
+                if (blob != null) {
+                    knownBlobs.put(hash, Boolean.TRUE);
+                } else {
+                    knownBlobs.remove(hash); // write blob again with the next reference
+                }
+            }
+
+            cacheItem = blob != null
+                    ? new CacheItem(blob.getBuffer(), cacheItem.getExpiration(), cacheItem.getETag(), cacheItem.getLastModified())
+                    : null;
+        }
+
+        return cacheItem;
+    }
+
+    /**
+     * Gets the expiration of an item, or zero when there is no such item or when the item references a blob that
+     * has been evicted from the backing cache, so that freshness checks, e.g. of a TileCacheSeeder, do not skip
+     * it. The item is read from the backing cache, because only its buffer identifies a reference.
+     */
+    @Override
+    public long getExpiration(String key) {
+        CacheItem cacheItem = backingCache.get(key);
+
+        if (cacheItem == null) {
+            return 0;
+        }
+
+        String hash = getReferencedHash(cacheItem.getBuffer());
+
+        if (hash != null) {
+            boolean exists = backingCache.getExpiration(getBlobKey(hash)) != 0;
+
+            synchronized (this) {
+                if (exists) {
+                    knownBlobs.put(hash, Boolean.TRUE);
+                } else {
+                    knownBlobs.remove(hash); // write blob again with the next reference
+                    return 0;
+                }
+            }
+        }
+
+        return cacheItem.getExpiration();
+    }
+
+    @Override
+    public long getSize() {
+        return backingCache.getSize();
+    }
+
+    @Override
+    public void set(String key, byte[] buffer, long expiration) {
+        set(key, new CacheItem(buffer, expiration));
+    }
+
+    @Override
+    public void set(String key, CacheItem cacheItem) {
+        byte[] buffer = cacheItem.getBuffer();
+
+        if (buffer.length == 0 || buffer.length > maxBlobSize) {
+            backingCache.set(key, cacheItem);
+            return;
+        }
+
+        byte[] hashBytes = getHashBytes(buffer);
+        String hash = toHex(hashBytes);
+        String blobKey = getBlobKey(hash);
+        boolean known;
+
+        synchronized (this) {
+            known = knownBlobs.get(hash) != null;
+        }
+
+        if (!known && backingCache.getExpiration(blobKey) == 0) {
+            backingCache.set(blobKey, new CacheItem(buffer, blobExpiration));
+        }
+
+        synchronized (this) {
+            knownBlobs.put(hash, Boolean.TRUE);
+
+            if (known) {
+                deduplicatedCount++;
+            }
+        }
+
+        byte[] reference = Arrays.copyOf(referenceMarker, referenceMarker.length + hashLength);
+        System.arraycopy(hashBytes, 0, reference, referenceMarker.length, hashLength);
+
+        backingCache.set(key, new CacheItem(reference, cacheItem.getExpiration(), cacheItem.getETag(), cacheItem.getLastModified()));
+    }
+
+    @Override
+    public void setExpiration(String key, long expiration) {
+        backingCache.setExpiration(key, expiration);
+    }
+
+    /**
+     * Gets the hexadecimal SHA-256 hash of a buffer.
+     */
+    static String getContentHash(byte[] buffer) {
+        return toHex(getHashBytes(buffer));
+    }
+
+    private static String getBlobKey(String hash) {
+        return blobKeyPrefix + hash.substring(0, 2) + "/" + hash;
+    }
+
+    private static String getReferencedHash(byte[] buffer) {
+        return buffer.length == referenceMarker.length + hashLength
+                && ByteBuffer.wrap(buffer, 0, referenceMarker.length).equals(ByteBuffer.wrap(referenceMarker))
+                ? toHex(Arrays.copyOfRange(buffer, referenceMarker.length, buffer.length))
+                : null;
+    }
+
+    private static byte[] getHashBytes(byte[] buffer) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(buffer);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // SHA-256 is supported by every Java platform
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[2 * bytes.length];
+
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = hexDigits[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = hexDigits[bytes[i] & 0xF];
+        }
+
+        return new String(chars);
+    }
+}
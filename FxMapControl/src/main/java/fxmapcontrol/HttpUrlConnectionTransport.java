@@ -0,0 +1,133 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Default IHttpTransport implementation. Sends blocking requests by means of HttpURLConnection on a thread pool
+ * and relies on the keep-alive connection handling of the Java runtime.
+ */
+public class HttpUrlConnectionTransport implements IHttpTransport {
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public CompletableFuture<HttpResponse> get(URL url, Map<String, String> headers, int timeout) {
+        return get(url, headers, timeout, null);
+    }
+
+    /**
+     * Sends an HTTP GET request on a thread pool. Cancelling the returned future disconnects a request
+     * that is already running.
+     */
+    @Override
+    public CompletableFuture<HttpResponse> get(URL url, Map<String, String> headers, int timeout,
+            TransferProgress progress) {
+
+        CompletableFuture<HttpResponse> responseFuture = new CompletableFuture<>();
+        AtomicReference<HttpURLConnection> connection = new AtomicReference<>();
+
+        responseFuture.whenComplete((response, exception) -> {
+            if (responseFuture.isCancelled()) {
+                HttpURLConnection cancelledConnection = connection.getAndSet(null);
+
+                if (cancelledConnection != null) {
+                    cancelledConnection.disconnect();
+                }
+            }
+        });
+
+        executor.execute(() -> {
+            if (!responseFuture.isDone()) {
+                try {
+                    responseFuture.complete(send(url, headers, timeout, progress, connection, responseFuture));
+                } catch (IOException ex) {
+                    responseFuture.completeExceptionally(ex);
+                }
+            }
+        });
+
+        return responseFuture;
+    }
+
+    private static HttpResponse send(URL url, Map<String, String> headers, int timeout, TransferProgress progress,
+            AtomicReference<HttpURLConnection> connectionReference, CompletableFuture<HttpResponse> responseFuture)
+            throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+
+        if (headers != null) {
+            headers.forEach(connection::setRequestProperty);
+        }
+
+        connectionReference.set(connection);
+
+        if (responseFuture.isCancelled()) {
+            throw new IOException("Request cancelled");
+        }
+
+        connection.connect();
+
+        int statusCode = connection.getResponseCode();
+        byte[] buffer = null;
+
+        if (statusCode == HttpURLConnection.HTTP_OK) {
+            if (progress != null) {
+                progress.setContentLength(connection.getContentLengthLong());
+            }
+
+            try (InputStream inputStream = connection.getInputStream()) {
+                buffer = readAllBytes(inputStream, connection.getContentLength(), progress);
+            }
+        } else {
+            // read the error response to keep the connection alive
+            //
+            try (InputStream errorStream = connection.getErrorStream()) {
+                if (errorStream != null) {
+                    readAllBytes(errorStream, -1, null);
+                }
+            } catch (IOException ex) {
+            }
+        }
+
+        connectionReference.set(null);
+
+        return new HttpResponse(statusCode, connection.getResponseMessage(), connection.getHeaderFields(), buffer);
+    }
+
+    private static byte[] readAllBytes(InputStream inputStream, int contentLength, TransferProgress progress)
+            throws IOException {
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 16384);
+        byte[] buffer = new byte[16384];
+        int length;
+
+        while ((length = inputStream.read(buffer)) >= 0) {
+            outputStream.write(buffer, 0, length);
+
+            if (progress != null) {
+                progress.addReceivedBytes(length);
+            }
+        }
+
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import fxmapcontrol.ITileCache.CacheItem;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Provides methods for asynchronously caching tile image buffers. A synchronous ITileCache is adapted by an
+ * AsyncTileCacheAdapter.
+ * <p>
+ * Cancelling a future returned by getAsync or getExpirationAsync indicates that the result is no longer needed.
+ */
+public interface IAsyncTileCache {
+
+    /**
+     * Gets a CacheItem, or completes with null when there is no item for the specified key.
+     */
+    CompletableFuture<CacheItem> getAsync(String key);
+
+    /**
+     * Gets the expiration of a cached item without reading its buffer, or completes with zero when there is no
+     * such item. The default implementation gets the entire item.
+     */
+    default CompletableFuture<Long> getExpirationAsync(String key) {
+        return getAsync(key).thenApply(cacheItem -> cacheItem != null ? cacheItem.getExpiration() : 0L);
+    }
+
+    CompletableFuture<Void> setAsync(String key, CacheItem cacheItem);
+
+    CompletableFuture<Void> setExpirationAsync(String key, long expiration);
+}
@@ -0,0 +1,104 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Provides a method to asynchronously send HTTP GET requests for map tile images.
+ */
+public interface IHttpTransport {
+
+    public static class HttpResponse {
+        private final int statusCode;
+        private final String statusMessage;
+        private final TreeMap<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final byte[] buffer;
+
+        public HttpResponse(int statusCode, String statusMessage, Map<String, List<String>> headers, byte[] buffer) {
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+            this.buffer = buffer;
+
+            headers.entrySet().stream()
+                    .filter(header -> header.getKey() != null) // HttpURLConnection status line
+                    .forEach(header -> this.headers.put(header.getKey(), header.getValue()));
+        }
+
+        public final int getStatusCode() {
+            return statusCode;
+        }
+
+        public final String getStatusMessage() {
+            return statusMessage;
+        }
+
+        /**
+         * Gets the first value of a response header, or null when the header does not exist.
+         * Header names are case-insensitive.
+         */
+        public final String getHeader(String name) {
+            List<String> values = headers.get(name);
+
+            return values != null && !values.isEmpty() ? values.get(0) : null;
+        }
+
+        /**
+         * Gets the response body, which contains exactly the received bytes. May be null when the request
+         * was not successful.
+         */
+        public final byte[] getBuffer() {
+            return buffer;
+        }
+    }
+
+    /**
+     * Progress of the response body transfer of a request. Updated by a single transport thread while the body
+     * of a successful response is received.
+     */
+    public static class TransferProgress {
+        private volatile long contentLength = -1;
+        private volatile long receivedBytes;
+
+        /**
+         * Gets the Content-Length of the response, or -1 when it is unknown or no response was received yet.
+         */
+        public final long getContentLength() {
+            return contentLength;
+        }
+
+        public final void setContentLength(long contentLength) {
+            this.contentLength = contentLength;
+        }
+
+        public final long getReceivedBytes() {
+            return receivedBytes;
+        }
+
+        public final void addReceivedBytes(long count) {
+            receivedBytes += count;
+        }
+    }
+
+    /**
+     * Sends an HTTP GET request with optional request headers, e.g. If-None-Match and If-Modified-Since for
+     * conditional requests. The headers argument may be null. The timeout is given in milliseconds.
+     */
+    CompletableFuture<HttpResponse> get(URL url, Map<String, String> headers, int timeout);
+
+    /**
+     * Sends an HTTP GET request like get(URL, Map, int), and reports the progress of the response body
+     * transfer. The default implementation does not report any progress.
+     */
+    default CompletableFuture<HttpResponse> get(URL url, Map<String, String> headers, int timeout,
+            TransferProgress progress) {
+
+        return get(url, headers, timeout);
+    }
+}
@@ -12,10 +12,22 @@ public interface ITileCache {
     public static class CacheItem {
         private final byte[] buffer;
         private final long expiration; // milliseconds since 1970/01/01 00:00:00 UTC
+        private final String eTag;
+        private final String lastModified;
 
         public CacheItem(byte[] buffer, long expiration) {
+            this(buffer, expiration, null, null);
+        }
+
+        /**
+         * Creates a CacheItem with the values of the ETag and Last-Modified headers of the HTTP response
+         * that provided the buffer, which are used to revalidate the item when it has expired.
+         */
+        public CacheItem(byte[] buffer, long expiration, String eTag, String lastModified) {
             this.buffer = buffer;
             this.expiration = expiration;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
         }
 
         public final byte[] getBuffer() {
@@ -25,9 +37,54 @@ public interface ITileCache {
         public final long getExpiration() {
             return expiration;
         }
+
+        public final String getETag() {
+            return eTag;
+        }
+
+        public final String getLastModified() {
+            return lastModified;
+        }
     }
 
     CacheItem get(String key);
 
+    /**
+     * Gets the expiration of a cached item without reading its buffer, or zero when there is no such item, e.g.
+     * for freshness checks. The default implementation gets the entire item.
+     */
+    default long getExpiration(String key) {
+        CacheItem cacheItem = get(key);
+
+        return cacheItem != null ? cacheItem.getExpiration() : 0;
+    }
+
     void set(String key, byte[] buffer, long expiration);
+
+    /**
+     * Gets the current size of all cached buffers in bytes, or -1 when unknown. The default implementation
+     * returns -1.
+     */
+    default long getSize() {
+        return -1;
+    }
+
+    /**
+     * Sets a CacheItem including its validators. The default implementation ignores the validators.
+     */
+    default void set(String key, CacheItem cacheItem) {
+        set(key, cacheItem.getBuffer(), cacheItem.getExpiration());
+    }
+
+    /**
+     * Sets the expiration of an existing CacheItem, e.g. after successful revalidation. The default
+     * implementation writes the entire item.
+     */
+    default void setExpiration(String key, long expiration) {
+        CacheItem cacheItem = get(key);
+
+        if (cacheItem != null) {
+            set(key, new CacheItem(cacheItem.getBuffer(), expiration, cacheItem.getETag(), cacheItem.getLastModified()));
+        }
+    }
 }
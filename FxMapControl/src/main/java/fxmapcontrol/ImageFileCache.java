@@ -4,21 +4,52 @@
  */
 package fxmapcontrol;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Default ITileCache implementation. Caches tile image files in a directory given by the rootDirectory
  * property.
+ * <p>
+ * The cache size may be limited by the maxSize and maxEntries properties. When a limit is set, the sizes and
+ * last access times of all cache files are held in an in-memory access index. The index is saved to a compact
+ * index file in the root directory after every sweep, after every 1000 written files and by saveAccessIndex, and
+ * is loaded in the background when a limit is set. The cache directory is only scanned when there is no valid
+ * index file. Files that were written after the index file was last saved, by a process that did not save it,
+ * are only indexed when they are accessed again. When a limit is exceeded, least recently accessed files are
+ * deleted by a background sweeper until the cache has shrunk to 90 percent of the limit.
  */
 public class ImageFileCache implements ITileCache {
 
@@ -30,10 +61,55 @@ public class ImageFileCache implements ITileCache {
     private static final long datetimeFactor = 10000L;
     private static final ByteBuffer expirationMarker = ByteBuffer.wrap("EXPIRES:".getBytes(StandardCharsets.US_ASCII));
 
+    // The ETag and Last-Modified validators of a cache item are stored as header lines in front of the expiration
+    // trailer, followed by their length and a marker, i.e. "<headers><int32 length>HEADERS:EXPIRES:<int64 ticks>".
+    //
+    private static final ByteBuffer headersMarker = ByteBuffer.wrap("HEADERS:".getBytes(StandardCharsets.US_ASCII));
+    private static final String eTagHeader = "ETag: ";
+    private static final String lastModifiedHeader = "Last-Modified: ";
+
+    private static final double sweepTargetRatio = 0.9;
+    private static final int indexSaveInterval = 1000; // written files
+    private static final String indexFileName = "accessindex.dat";
+    private static final int keyLockCount = 64;
+    private static final int indexMagic = 0x58494346; // "FCIX"
+
+    private static final ExecutorService sweeper = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private static class AccessEntry {
+
+        public final long size;
+        public volatile long lastAccess;
+
+        public AccessEntry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
     private final Path rootDirectory;
+    private final ConcurrentHashMap<String, AccessEntry> accessIndex = new ConcurrentHashMap<>();
+    private final AtomicLong totalSize = new AtomicLong();
+    private final AtomicBoolean accessIndexCreated = new AtomicBoolean();
+    private final AtomicBoolean sweepPending = new AtomicBoolean();
+    private final AtomicBoolean indexSavePending = new AtomicBoolean();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final Object[] keyLocks = new Object[keyLockCount];
+    private volatile boolean accessIndexLoaded;
+    private volatile long maxSize;
+    private volatile int maxEntries;
 
     public ImageFileCache(Path rootDirectory) {
         this.rootDirectory = rootDirectory;
+
+        for (int i = 0; i < keyLockCount; i++) {
+            keyLocks[i] = new Object();
+        }
         //System.out.println(rootDirectory.toAbsolutePath());
     }
 
@@ -62,59 +138,510 @@ public class ImageFileCache implements ITileCache {
         return rootDirectory;
     }
 
+    /**
+     * Gets the maximum total size of all cache files in bytes. The default value is zero, i.e. no limit.
+     */
+    public final long getMaxSize() {
+        return maxSize;
+    }
+
+    public final void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        startAccessIndex();
+    }
+
+    /**
+     * Gets the maximum number of cache files. The default value is zero, i.e. no limit.
+     */
+    public final int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public final void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        startAccessIndex();
+    }
+
+    /**
+     * Gets the total size of all cache files in bytes, as far as known from the access index, or -1 when no size
+     * or entry limit is set, or when the access index is not yet loaded.
+     */
+    @Override
+    public final long getSize() {
+        return isLimited() && accessIndexLoaded ? totalSize.get() : -1;
+    }
+
+    /**
+     * Reads a cache file by positional reads on a FileChannel. The trailer is read first, so that the image
+     * buffer is read directly into an array of its exact size.
+     */
     @Override
     public CacheItem get(String key) {
+        Path cacheFile = rootDirectory.resolve(getPath(key));
+
         try {
-            File cacheFile = getFile(key);
+            if (isCacheFile(cacheFile)) {
+                //System.out.println("Reading " + cacheFile);
+                try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+                    Trailer trailer = readTrailer(channel, true);
+                    byte[] buffer = new byte[(int) trailer.bufferLength];
 
-            if (cacheFile.isFile()) {
-                //System.out.println("Reading " + cacheFile.getPath());
-                byte[] buffer = new byte[(int) cacheFile.length()];
-                long expiration = 0;
+                    read(channel, ByteBuffer.wrap(buffer), 0);
+                    setAccessed(key, channel.size());
 
-                try (FileInputStream fileStream = new FileInputStream(cacheFile)) {
-                    fileStream.read(buffer);
+                    return new CacheItem(buffer, trailer.expiration, trailer.eTag, trailer.lastModified);
                 }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ImageFileCache.class.getName()).log(Level.WARNING, ex.toString());
+        }
 
-                if (buffer.length >= 16 && ByteBuffer.wrap(buffer, buffer.length - 16, 8).equals(expirationMarker)) {
-                    expiration = ByteBuffer.wrap(buffer, buffer.length - 8, 8).order(ByteOrder.LITTLE_ENDIAN)
-                            .getLong() / datetimeFactor - datetimeOffset;
-                }
+        return null;
+    }
 
-                return new CacheItem(buffer, expiration);
-            }
+    /**
+     * Reads only the expiration trailer of a cache file.
+     */
+    @Override
+    public long getExpiration(String key) {
+        Path cacheFile = rootDirectory.resolve(getPath(key));
+
+        try {
+            if (isCacheFile(cacheFile)) {
+                try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+                    long expiration = readTrailer(channel, false).expiration;
+
+                    setAccessed(key, channel.size());
 
+                    return expiration;
+                }
+            }
         } catch (IOException ex) {
             Logger.getLogger(ImageFileCache.class.getName()).log(Level.WARNING, ex.toString());
         }
 
-        return null;
+        return 0;
     }
 
     @Override
     public void set(String key, byte[] buffer, long expiration) {
+        set(key, new CacheItem(buffer, expiration));
+    }
+
+    /**
+     * Writes a cache file atomically, i.e. to a temporary file in the same directory that is then renamed,
+     * so that concurrent readers never see a partially written file.
+     */
+    @Override
+    public void set(String key, CacheItem cacheItem) {
         try {
             File cacheFile = getFile(key);
-            //System.out.println("Writing " + cacheFile.getPath() + ", Expires " + new java.util.Date(expiration));
+            byte[] buffer = cacheItem.getBuffer();
+            //System.out.println("Writing " + cacheFile.getPath() + ", Expires " + new java.util.Date(cacheItem.getExpiration()));
             cacheFile.getParentFile().mkdirs();
 
-            try (FileOutputStream fileStream = new FileOutputStream(cacheFile)) {
-                fileStream.write(buffer, 0, buffer.length);
-                fileStream.write(expirationMarker.array());
-                fileStream.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
-                        .putLong((expiration + datetimeOffset) * datetimeFactor).array());
+            Path tempFile = Files.createTempFile(cacheFile.getParentFile().toPath(), cacheFile.getName(), ".tmp");
+
+            try {
+                try (FileOutputStream fileStream = new FileOutputStream(tempFile.toFile())) {
+                    fileStream.write(buffer, 0, buffer.length);
+
+                    if (cacheItem.getETag() != null || cacheItem.getLastModified() != null) {
+                        StringBuilder headers = new StringBuilder();
+
+                        if (cacheItem.getETag() != null) {
+                            headers.append(eTagHeader).append(cacheItem.getETag()).append('\n');
+                        }
+
+                        if (cacheItem.getLastModified() != null) {
+                            headers.append(lastModifiedHeader).append(cacheItem.getLastModified()).append('\n');
+                        }
+
+                        byte[] headersBuffer = headers.toString().getBytes(StandardCharsets.UTF_8);
+
+                        fileStream.write(headersBuffer);
+                        fileStream.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN)
+                                .putInt(headersBuffer.length).array());
+                        fileStream.write(headersMarker.array());
+                    }
+
+                    fileStream.write(expirationMarker.array());
+                    fileStream.write(getExpirationBuffer(cacheItem.getExpiration()));
+                }
+
+                tempFile.toFile().setReadable(true, false);
+                tempFile.toFile().setWritable(true, false);
+
+                // the sweeper must not delete the new file between moving it and updating the access index
+                //
+                synchronized (getKeyLock(getPath(key))) {
+                    Files.move(tempFile, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    setWritten(key, cacheFile.length());
+                }
+            } finally {
+                Files.deleteIfExists(tempFile); // after failure
             }
 
-            cacheFile.setReadable(true, false);
-            cacheFile.setWritable(true, false);
         } catch (IOException ex) {
             Logger.getLogger(ImageFileCache.class.getName()).log(Level.WARNING, ex.toString());
         }
     }
 
+    /**
+     * Replaces the expiration trailer of an existing cache file, or appends one. The file is rewritten atomically,
+     * like in set, and the whole update holds the lock of the key, so that it is not interleaved with a concurrent
+     * set or sweeper delete of the same file.
+     */
+    @Override
+    public void setExpiration(String key, long expiration) {
+        try {
+            File cacheFile = getFile(key);
+
+            synchronized (getKeyLock(getPath(key))) {
+                if (isCacheFile(cacheFile.toPath())) {
+                    byte[] buffer = Files.readAllBytes(cacheFile.toPath());
+                    boolean hasExpiration = buffer.length >= 16
+                            && ByteBuffer.wrap(buffer, buffer.length - 16, 8).equals(expirationMarker);
+
+                    Path tempFile = Files.createTempFile(cacheFile.getParentFile().toPath(), cacheFile.getName(), ".tmp");
+
+                    try {
+                        try (FileOutputStream fileStream = new FileOutputStream(tempFile.toFile())) {
+                            if (hasExpiration) {
+                                fileStream.write(buffer, 0, buffer.length - 8);
+                            } else {
+                                fileStream.write(buffer);
+                                fileStream.write(expirationMarker.array());
+                            }
+
+                            fileStream.write(getExpirationBuffer(expiration));
+                        }
+
+                        tempFile.toFile().setReadable(true, false);
+                        tempFile.toFile().setWritable(true, false);
+
+                        Files.move(tempFile, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        setWritten(key, cacheFile.length());
+                    } finally {
+                        Files.deleteIfExists(tempFile); // after failure
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ImageFileCache.class.getName()).log(Level.WARNING, ex.toString());
+        }
+    }
+
+    /**
+     * Expiration, validators and image buffer length of a cache file.
+     */
+    private static class Trailer {
+
+        public long bufferLength;
+        public long expiration;
+        public String eTag;
+        public String lastModified;
+    }
+
+    /**
+     * Reads the expiration trailer, and optionally the validator headers, from the end of a cache file.
+     */
+    private static Trailer readTrailer(FileChannel channel, boolean readHeaders) throws IOException {
+        Trailer trailer = new Trailer();
+        long length = channel.size();
+        int tailLength = (int) Math.min(length, 28); // <int32 length>HEADERS:EXPIRES:<int64 ticks>
+        ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+
+        read(channel, tail, length - tailLength);
+
+        if (tailLength >= 16 && ByteBuffer.wrap(tail.array(), tailLength - 16, 8).equals(expirationMarker)) {
+            trailer.expiration = tail.getLong(tailLength - 8) / datetimeFactor - datetimeOffset;
+            length -= 16;
+
+            if (tailLength >= 28 && ByteBuffer.wrap(tail.array(), tailLength - 24, 8).equals(headersMarker)) {
+                int headersLength = tail.getInt(tailLength - 28);
+
+                if (headersLength >= 0 && headersLength <= length - 12) {
+                    length -= 12 + headersLength;
+
+                    if (readHeaders) {
+                        ByteBuffer headers = ByteBuffer.allocate(headersLength);
+
+                        read(channel, headers, length);
+
+                        for (String header : new String(headers.array(), StandardCharsets.UTF_8).split("\n")) {
+                            if (header.startsWith(eTagHeader)) {
+                                trailer.eTag = header.substring(eTagHeader.length());
+                            } else if (header.startsWith(lastModifiedHeader)) {
+                                trailer.lastModified = header.substring(lastModifiedHeader.length());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        trailer.bufferLength = length;
+
+        return trailer;
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+
+            if (count < 0) {
+                throw new EOFException();
+            }
+
+            position += count;
+        }
+    }
+
+    /**
+     * Checks whether a cache file exists by a single attribute read.
+     */
+    private static boolean isCacheFile(Path file) throws IOException {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).isRegularFile();
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+    }
+
+    private static byte[] getExpirationBuffer(long expiration) {
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                .putLong((expiration + datetimeOffset) * datetimeFactor).array();
+    }
+
     private File getFile(String key) {
-        key = key.replace(",", "/").replace(":", "/").replace(";", "/");
+        return rootDirectory.resolve(getPath(key)).toFile();
+    }
+
+    private static String getPath(String key) {
+        return key.replace(",", "/").replace(":", "/").replace(";", "/");
+    }
+
+    private Object getKeyLock(String path) {
+        return keyLocks[(path.hashCode() & 0x7fffffff) % keyLockCount];
+    }
+
+    private boolean isLimited() {
+        return maxSize > 0 || maxEntries > 0;
+    }
+
+    private void setAccessed(String key, long size) {
+        if (isLimited()) {
+            String path = getPath(key);
+            AccessEntry entry = accessIndex.get(path);
+
+            if (entry != null) {
+                entry.lastAccess = new Date().getTime();
+            } else if (accessIndex.putIfAbsent(path, new AccessEntry(size, new Date().getTime())) == null) {
+                totalSize.addAndGet(size);
+            }
+        }
+    }
+
+    private void setWritten(String key, long size) {
+        if (isLimited()) {
+            AccessEntry entry = accessIndex.put(getPath(key), new AccessEntry(size, new Date().getTime()));
+
+            totalSize.addAndGet(entry != null ? size - entry.size : size);
+
+            if ((maxSize > 0 && totalSize.get() > maxSize || maxEntries > 0 && accessIndex.size() > maxEntries)
+                    && sweepPending.compareAndSet(false, true)) {
+                sweeper.execute(this::sweep);
+
+            } else if (writeCount.incrementAndGet() % indexSaveInterval == 0
+                    && indexSavePending.compareAndSet(false, true)) {
+                sweeper.execute(this::saveAccessIndex);
+            }
+        }
+    }
+
+    private void startAccessIndex() {
+        if (isLimited() && accessIndexCreated.compareAndSet(false, true)) {
+            sweeper.execute(() -> {
+                boolean loaded = loadAccessIndex();
+
+                if (!loaded) {
+                    createAccessIndex();
+                }
+
+                accessIndexLoaded = true;
+
+                if (!loaded) {
+                    saveAccessIndex();
+                }
+
+                sweep();
+            });
+        }
+    }
+
+    /**
+     * Saves the access index to the index file in the root directory, when a cache size limit is set and the
+     * access index was completely loaded or created.
+     */
+    public void saveAccessIndex() {
+        indexSavePending.set(false);
+
+        if (!isLimited() || !accessIndexLoaded || !Files.isDirectory(rootDirectory)) {
+            return;
+        }
+
+        Path indexFile = rootDirectory.resolve(indexFileName);
+
+        try {
+            Path tempFile = Files.createTempFile(rootDirectory, indexFileName, ".tmp");
+
+            try {
+                List<Map.Entry<String, AccessEntry>> entries = new ArrayList<>(accessIndex.entrySet());
+
+                try (DataOutputStream stream = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+
+                    stream.writeInt(indexMagic);
+                    stream.writeInt(entries.size());
+
+                    for (Map.Entry<String, AccessEntry> entry : entries) {
+                        stream.writeUTF(entry.getKey());
+                        stream.writeLong(entry.getValue().size);
+                        stream.writeLong(entry.getValue().lastAccess);
+                    }
+                }
+
+                Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } finally {
+                Files.deleteIfExists(tempFile); // after failure
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ImageFileCache.class.getName()).log(Level.WARNING, ex.toString());
+        }
+    }
+
+    /**
+     * Adds the entries of the index file to the access index. Entries that were added meanwhile by get or set
+     * calls are not replaced. Returns false when there is no valid index file.
+     */
+    private boolean loadAccessIndex() {
+        Path indexFile = rootDirectory.resolve(indexFileName);
+
+        if (!Files.isRegularFile(indexFile)) {
+            return false;
+        }
+
+        try (DataInputStream stream = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(indexFile)))) {
+
+            if (stream.readInt() != indexMagic) {
+                return false;
+            }
+
+            int count = stream.readInt();
+
+            for (int i = 0; i < count; i++) {
+                String path = stream.readUTF();
+                long size = stream.readLong();
+                long lastAccess = stream.readLong();
+
+                if (accessIndex.putIfAbsent(path, new AccessEntry(size, lastAccess)) == null) {
+                    totalSize.addAndGet(size);
+                }
+            }
+
+            return true;
+
+        } catch (IOException ex) {
+            Logger.getLogger(ImageFileCache.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{indexFile, ex});
+            return false;
+        }
+    }
+
+    /**
+     * Adds all existing cache files to the access index, with their last modification time as initial access
+     * time. Entries that were added meanwhile by get or set calls are not replaced. Temporary files of
+     * incomplete writes and the index file are skipped.
+     */
+    private void createAccessIndex() {
+        try {
+            if (Files.isDirectory(rootDirectory)) {
+                Files.walkFileTree(rootDirectory, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        String fileName = file.getFileName().toString();
+
+                        if (attributes.isRegularFile()
+                                && !fileName.endsWith(".tmp")
+                                && !file.equals(rootDirectory.resolve(indexFileName))) {
+                            String path = rootDirectory.relativize(file).toString().replace(File.separatorChar, '/');
+                            long size = attributes.size();
+
+                            if (accessIndex.putIfAbsent(path, new AccessEntry(size, attributes.lastModifiedTime().toMillis())) == null) {
+                                totalSize.addAndGet(size);
+                            }
+                        }
+
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ImageFileCache.class.getName()).log(Level.WARNING, ex.toString());
+        }
+    }
+
+    /**
+     * Deletes least recently accessed cache files until the cache size is below the target size. Removing an
+     * entry from the access index and deleting its file is serialized with writing a file of the same key, so
+     * that a concurrently written file is never deleted. Concurrent get calls are never blocked.
+     */
+    private void sweep() {
+        sweepPending.set(false);
+
+        long targetSize = maxSize > 0 ? (long) (sweepTargetRatio * maxSize) : Long.MAX_VALUE;
+        long targetEntries = maxEntries > 0 ? (long) (sweepTargetRatio * maxEntries) : Long.MAX_VALUE;
+
+        if (totalSize.get() <= targetSize && accessIndex.size() <= targetEntries) {
+            return;
+        }
+
+        List<Map.Entry<String, AccessEntry>> entries = new ArrayList<>(accessIndex.entrySet());
+        long[] lastAccess = new long[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+
+        for (int i = 0; i < order.length; i++) {
+            lastAccess[i] = entries.get(i).getValue().lastAccess; // snapshot, values may change while sorting
+            order[i] = i;
+        }
+
+        Arrays.sort(order, Comparator.comparingLong(i -> lastAccess[i]));
+
+        for (int i = 0; i < order.length
+                && (totalSize.get() > targetSize || accessIndex.size() > targetEntries); i++) {
+
+            Map.Entry<String, AccessEntry> entry = entries.get(order[i]);
+
+            synchronized (getKeyLock(entry.getKey())) {
+                if (accessIndex.remove(entry.getKey(), entry.getValue())) {
+                    totalSize.addAndGet(-entry.getValue().size);
+
+                    try {
+                        Files.deleteIfExists(rootDirectory.resolve(entry.getKey()));
+                    } catch (IOException ex) {
+                        Logger.getLogger(ImageFileCache.class.getName()).log(Level.WARNING, ex.toString());
+                    }
+                }
+            }
+        }
 
-        return rootDirectory.resolve(key).toFile();
+        saveAccessIndex();
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javafx.scene.image.Image;
+
+/**
+ * Process-wide memory cache of decoded tile images, keyed like ITileCache entries. The cache size is limited
+ * by the estimated number of pixel bytes of the cached images, i.e. four bytes per pixel. Least recently used
+ * images are evicted first.
+ * <p>
+ * Used by TileImageLoader before the ITileCache or the TileSource is accessed, when set by
+ * TileImageLoader.setImageMemoryCache. Images are keyed like ITileCache entries also when no ITileCache is set,
+ * and only images of tile sources that are not cacheable are keyed by their URL.
+ */
+public class ImageMemoryCache {
+
+    private static final long defaultMaxSize = 64L * 1024 * 1024; // 64 MB
+    private static final long unknownImageSize = 4L * 256 * 256; // estimated size of an image without dimensions
+
+    private static class CacheEntry {
+
+        public final Image image;
+        public final long expiration;
+        public final long size;
+
+        public CacheEntry(Image image, long expiration, long size) {
+            this.image = image;
+            this.expiration = expiration;
+            this.size = size;
+        }
+    }
+
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final long maxSize;
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public ImageMemoryCache() {
+        this(defaultMaxSize);
+    }
+
+    /**
+     * Creates an ImageMemoryCache with the specified maximum number of pixel bytes.
+     */
+    public ImageMemoryCache(long maxSize) {
+        if (maxSize <= 0L) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    public final long getMaxSize() {
+        return maxSize;
+    }
+
+    public final synchronized long getSize() {
+        return size;
+    }
+
+    public final synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public final synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public final synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public final synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Gets a cached image, or null when there is no image for the specified key or when the image has expired.
+     */
+    public synchronized Image get(String key) {
+        CacheEntry entry = entries.get(key);
+
+        if (entry != null && entry.expiration < new Date().getTime()) {
+            remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return entry.image;
+    }
+
+    /**
+     * Gets a cached image, which may have expired, without affecting the hit and miss counts, or null when
+     * there is no image for the specified key.
+     */
+    public synchronized Image peek(String key) {
+        CacheEntry entry = entries.get(key);
+
+        return entry != null ? entry.image : null;
+    }
+
+    /**
+     * Checks whether there is an image for the specified key, which may have expired, without affecting the
+     * hit and miss counts or the eviction order.
+     */
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Adds an image with an expiration in milliseconds since 1970/01/01 00:00:00 UTC. Images that are larger
+     * than the maximum cache size, and images that failed to load, are not added. Images without dimensions,
+     * e.g. while loading in the background, are counted with the size of a 256x256 tile image.
+     */
+    public synchronized void set(String key, Image image, long expiration) {
+        long imageSize = getImageSize(image);
+
+        remove(key);
+
+        if (!image.isError() && imageSize <= maxSize) {
+            entries.put(key, new CacheEntry(image, expiration, imageSize));
+            size += imageSize;
+
+            Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+
+            while (size > maxSize && iterator.hasNext()) {
+                size -= iterator.next().getValue().size;
+                iterator.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    public synchronized void remove(String key) {
+        CacheEntry entry = entries.remove(key);
+
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0L;
+    }
+
+    private static long getImageSize(Image image) {
+        long imageSize = 4L * (long) Math.ceil(image.getWidth()) * (long) Math.ceil(image.getHeight());
+
+        return imageSize > 0L ? imageSize : unknownImageSize;
+    }
+}
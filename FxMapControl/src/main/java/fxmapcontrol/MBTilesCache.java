@@ -0,0 +1,280 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import fxmapcontrol.MBTilesDatabase.TileWrite;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ITileCache implementation that stores tile images in MBTiles files, one file per tile source name, in a
+ * directory given by the rootDirectory property. The expiration and validators of cached tiles are stored in
+ * an additional tile_cache_info table.
+ * <p>
+ * Writes are collected and performed asynchronously in batched transactions. Writes of a failed transaction
+ * are kept and retried with the next batch. MBTiles files are only created when a tile is written. A missing
+ * MBTiles file is only looked up once, until a tile of its tile source is written. Requires an SQLite JDBC
+ * driver, e.g. org.xerial:sqlite-jdbc, at runtime.
+ */
+public class MBTilesCache implements ITileCache, AutoCloseable {
+
+    private static final int defaultMaxReaders = 4;
+    private static final int maxBatchSize = 256;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class TileDatabase {
+
+        public final MBTilesDatabase database;
+        public final ConcurrentHashMap<String, TileWrite> pendingWrites = new ConcurrentHashMap<>();
+        public final AtomicBoolean writePending = new AtomicBoolean();
+
+        public TileDatabase(MBTilesDatabase database) {
+            this.database = database;
+        }
+    }
+
+    private final ConcurrentHashMap<String, TileDatabase> databases = new ConcurrentHashMap<>();
+    private final Set<String> missingDatabases = ConcurrentHashMap.newKeySet(); // names without MBTiles file
+    private final Path rootDirectory;
+    private final int maxReaders;
+
+    public MBTilesCache(Path rootDirectory) {
+        this(rootDirectory, defaultMaxReaders);
+    }
+
+    public MBTilesCache(Path rootDirectory, int maxReaders) {
+        this.rootDirectory = rootDirectory;
+        this.maxReaders = maxReaders;
+    }
+
+    public final Path getRootDirectory() {
+        return rootDirectory;
+    }
+
+    @Override
+    public CacheItem get(String key) {
+        TileKey tileKey = TileKey.parse(key);
+
+        if (tileKey != null) {
+            try {
+                TileDatabase tileDatabase = getDatabase(tileKey.name, false);
+
+                if (tileDatabase == null) {
+                    return null;
+                }
+
+                TileWrite pendingWrite = tileDatabase.pendingWrites.get(key);
+
+                if (pendingWrite != null && pendingWrite.cacheItem.getBuffer() != null) {
+                    return pendingWrite.cacheItem;
+                }
+
+                CacheItem cacheItem = tileDatabase.database.getCacheItem(tileKey.zoomLevel, tileKey.x, tileKey.y);
+
+                if (cacheItem != null && pendingWrite != null) { // pending expiration update
+                    cacheItem = new CacheItem(cacheItem.getBuffer(), pendingWrite.cacheItem.getExpiration(),
+                            cacheItem.getETag(), cacheItem.getLastModified());
+                }
+
+                return cacheItem;
+
+            } catch (Exception ex) {
+                Logger.getLogger(MBTilesCache.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{key, ex});
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void set(String key, byte[] buffer, long expiration) {
+        set(key, new CacheItem(buffer, expiration));
+    }
+
+    @Override
+    public void set(String key, CacheItem cacheItem) {
+        write(key, cacheItem);
+    }
+
+    /**
+     * Updates the expiration of an existing item without writing its buffer again.
+     */
+    @Override
+    public void setExpiration(String key, long expiration) {
+        TileKey tileKey = TileKey.parse(key);
+
+        if (tileKey != null) {
+            try {
+                TileDatabase tileDatabase = getDatabase(tileKey.name, false);
+
+                if (tileDatabase == null) {
+                    return;
+                }
+
+                TileWrite pendingWrite = tileDatabase.pendingWrites.get(key);
+
+                write(key, pendingWrite != null && pendingWrite.cacheItem.getBuffer() != null
+                        ? new CacheItem(pendingWrite.cacheItem.getBuffer(), expiration,
+                                pendingWrite.cacheItem.getETag(), pendingWrite.cacheItem.getLastModified())
+                        : new CacheItem(null, expiration));
+
+            } catch (Exception ex) {
+                Logger.getLogger(MBTilesCache.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{key, ex});
+            }
+        }
+    }
+
+    /**
+     * Writes all pending items and closes the MBTiles files.
+     */
+    @Override
+    public void close() {
+        for (TileDatabase tileDatabase : databases.values()) {
+            writePending(tileDatabase);
+
+            try {
+                tileDatabase.database.close();
+            } catch (Exception ex) {
+                Logger.getLogger(MBTilesCache.class.getName()).log(Level.WARNING, ex.toString());
+            }
+        }
+
+        databases.clear();
+    }
+
+    private void write(String key, CacheItem cacheItem) {
+        TileKey tileKey = TileKey.parse(key);
+
+        if (tileKey != null) {
+            try {
+                TileDatabase tileDatabase = getDatabase(tileKey.name, true);
+
+                tileDatabase.pendingWrites.put(key, new TileWrite(tileKey.zoomLevel, tileKey.x, tileKey.y, cacheItem));
+
+                if (tileDatabase.writePending.compareAndSet(false, true)) {
+                    executor.execute(() -> {
+                        tileDatabase.writePending.set(false);
+                        writePending(tileDatabase);
+                    });
+                }
+            } catch (Exception ex) {
+                Logger.getLogger(MBTilesCache.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{key, ex});
+            }
+        }
+    }
+
+    private void writePending(TileDatabase tileDatabase) {
+        List<Map.Entry<String, TileWrite>> writes = new ArrayList<>(tileDatabase.pendingWrites.entrySet());
+
+        for (int i = 0; i < writes.size(); i += maxBatchSize) {
+            List<Map.Entry<String, TileWrite>> batch = writes.subList(i, Math.min(i + maxBatchSize, writes.size()));
+            List<TileWrite> tileWrites = new ArrayList<>(batch.size());
+
+            batch.forEach(entry -> tileWrites.add(entry.getValue()));
+
+            try {
+                tileDatabase.database.write(tileWrites);
+
+            } catch (Exception ex) {
+                Logger.getLogger(MBTilesCache.class.getName()).log(Level.WARNING, "{0}: {1}",
+                        new Object[]{tileDatabase.database.getFile(), ex});
+
+                return; // keep the items of this and all further batches for a retry
+            }
+
+            // remove written items, unless they were replaced meanwhile
+            //
+            batch.forEach(entry -> tileDatabase.pendingWrites.remove(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Gets the TileDatabase of a tile source name. Returns null when the MBTiles file does not exist and create
+     * is false. A missing file is remembered, so that further lookups neither access the file system nor lock.
+     */
+    private TileDatabase getDatabase(String name, boolean create) throws Exception {
+        TileDatabase tileDatabase = databases.get(name);
+
+        if (tileDatabase == null && (create || !missingDatabases.contains(name))) {
+            synchronized (databases) {
+                tileDatabase = databases.get(name);
+
+                if (tileDatabase == null) {
+                    Path file = rootDirectory.resolve(name + ".mbtiles");
+
+                    if (!create && !Files.isRegularFile(file)) {
+                        missingDatabases.add(name);
+                        return null;
+                    }
+
+                    Files.createDirectories(rootDirectory);
+
+                    tileDatabase = new TileDatabase(new MBTilesDatabase(file, true, maxReaders));
+
+                    tileDatabase.database.setMetadata("name", name);
+                    databases.put(name, tileDatabase);
+                    missingDatabases.remove(name);
+                }
+            }
+        }
+
+        return tileDatabase;
+    }
+
+    /**
+     * Tile source name, zoom level, column and row of a cache key as created by TileImageLoader.getCacheKey.
+     */
+    private static class TileKey {
+
+        public final String name;
+        public final int zoomLevel;
+        public final int x;
+        public final int y;
+
+        private TileKey(String name, int zoomLevel, int x, int y) {
+            this.name = name;
+            this.zoomLevel = zoomLevel;
+            this.x = x;
+            this.y = y;
+        }
+
+        public static TileKey parse(String key) {
+            int yIndex = key.lastIndexOf('/');
+            int xIndex = yIndex > 0 ? key.lastIndexOf('/', yIndex - 1) : -1;
+            int zIndex = xIndex > 0 ? key.lastIndexOf('/', xIndex - 1) : -1;
+
+            if (zIndex > 0) {
+                String y = key.substring(yIndex + 1);
+                int extension = y.indexOf('.');
+
+                try {
+                    return new TileKey(key.substring(0, zIndex),
+                            Integer.parseInt(key.substring(zIndex + 1, xIndex)),
+                            Integer.parseInt(key.substring(xIndex + 1, yIndex)),
+                            Integer.parseInt(extension >= 0 ? y.substring(0, extension) : y));
+
+                } catch (NumberFormatException ex) {
+                }
+            }
+
+            return null;
+        }
+    }
+}
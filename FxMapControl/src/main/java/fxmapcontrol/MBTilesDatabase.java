@@ -0,0 +1,317 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import fxmapcontrol.ITileCache.CacheItem;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Access to an MBTiles file, i.e. an SQLite database with a tiles table. Tile rows are stored in TMS order, i.e.
+ * from south to north, and are converted from and to the XYZ tile rows used by the map tile layers.
+ * <p>
+ * Requires an SQLite JDBC driver, e.g. org.xerial:sqlite-jdbc, at runtime. Reading connections are held in a
+ * small pool, writes are performed on a single connection.
+ */
+class MBTilesDatabase implements AutoCloseable {
+
+    private static final int sqliteOpenReadOnly = 0x00000001; // SQLITE_OPEN_READONLY
+
+    private static final String tileQuery
+            = "SELECT tile_data FROM tiles WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+
+    private static final String cacheItemQuery
+            = "SELECT t.tile_data, c.expiration, c.etag, c.last_modified FROM tiles t"
+            + " LEFT JOIN tile_cache_info c ON c.zoom_level=t.zoom_level AND c.tile_column=t.tile_column AND c.tile_row=t.tile_row"
+            + " WHERE t.zoom_level=? AND t.tile_column=? AND t.tile_row=?";
+
+    private static final String cacheInfoQuery
+            = "SELECT expiration, etag, last_modified FROM tile_cache_info WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+
+    /**
+     * A reading connection with its prepared statements.
+     */
+    private static class Reader {
+
+        public final Connection connection;
+        public final PreparedStatement tileStatement;
+        public final PreparedStatement cacheItemStatement;
+        public final PreparedStatement cacheInfoStatement;
+
+        public Reader(Connection connection) throws SQLException {
+            this.connection = connection;
+            tileStatement = connection.prepareStatement(tileQuery);
+            cacheItemStatement = connection.prepareStatement(cacheItemQuery);
+            cacheInfoStatement = connection.prepareStatement(cacheInfoQuery);
+        }
+    }
+
+    private final Path file;
+    private final boolean writable;
+    private final ArrayBlockingQueue<Reader> readers;
+    private final AtomicInteger readerCount = new AtomicInteger();
+    private final int maxReaders;
+    private Connection writeConnection;
+
+    public MBTilesDatabase(Path file, boolean writable, int maxReaders) throws SQLException {
+        this.file = file;
+        this.writable = writable;
+        this.maxReaders = maxReaders;
+
+        readers = new ArrayBlockingQueue<>(maxReaders);
+
+        if (writable) {
+            writeConnection = DriverManager.getConnection("jdbc:sqlite:" + file.toAbsolutePath());
+
+            try (Statement statement = writeConnection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL"); // readers do not block the writer
+                statement.execute("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+                statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS name ON metadata (name)");
+                statement.execute("CREATE TABLE IF NOT EXISTS tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+                statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+                statement.execute("CREATE TABLE IF NOT EXISTS tile_cache_info (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER,"
+                        + " expiration INTEGER, etag TEXT, last_modified TEXT,"
+                        + " PRIMARY KEY (zoom_level, tile_column, tile_row))");
+            }
+
+            writeConnection.setAutoCommit(false);
+        }
+    }
+
+    public final Path getFile() {
+        return file;
+    }
+
+    public Map<String, String> getMetadata() throws SQLException {
+        HashMap<String, String> metadata = new HashMap<>();
+        Reader reader = getReader();
+
+        try (Statement statement = reader.connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT name, value FROM metadata")) {
+
+            while (result.next()) {
+                metadata.put(result.getString(1), result.getString(2));
+            }
+        } finally {
+            releaseReader(reader);
+        }
+
+        return metadata;
+    }
+
+    /**
+     * Gets the tile_data of a tile with XYZ tile row y, or null.
+     */
+    public byte[] getTileData(int zoomLevel, int x, int y) throws SQLException {
+        Reader reader = getReader();
+
+        try {
+            setTileParameters(reader.tileStatement, 1, zoomLevel, x, y);
+
+            try (ResultSet result = reader.tileStatement.executeQuery()) {
+                return result.next() ? result.getBytes(1) : null;
+            }
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Gets a tile with its cache information, or a CacheItem with an empty buffer when there is only cache
+     * information, i.e. for a missing tile. Tiles without cache information, e.g. in an MBTiles file that was
+     * created by other tools, do not expire.
+     */
+    public CacheItem getCacheItem(int zoomLevel, int x, int y) throws SQLException {
+        Reader reader = getReader();
+
+        try {
+            setTileParameters(reader.cacheItemStatement, 1, zoomLevel, x, y);
+
+            try (ResultSet result = reader.cacheItemStatement.executeQuery()) {
+                if (result.next()) {
+                    long expiration = result.getLong(2);
+
+                    return new CacheItem(result.getBytes(1),
+                            result.wasNull() ? Long.MAX_VALUE : expiration,
+                            result.getString(3), result.getString(4));
+                }
+            }
+
+            setTileParameters(reader.cacheInfoStatement, 1, zoomLevel, x, y);
+
+            try (ResultSet result = reader.cacheInfoStatement.executeQuery()) {
+                return result.next()
+                        ? new CacheItem(new byte[0], result.getLong(1), result.getString(2), result.getString(3))
+                        : null;
+            }
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Writes tiles and cache information in a single transaction. CacheItems with an empty buffer only write
+     * cache information, CacheItems with a null buffer only update the expiration.
+     */
+    public synchronized void write(List<TileWrite> writes) throws SQLException {
+        if (!writable) {
+            throw new IllegalStateException("database is read-only");
+        }
+
+        try (PreparedStatement tileStatement = writeConnection.prepareStatement(
+                "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+                PreparedStatement deleteTileStatement = writeConnection.prepareStatement(
+                        "DELETE FROM tiles WHERE zoom_level=? AND tile_column=? AND tile_row=?");
+                PreparedStatement infoStatement = writeConnection.prepareStatement(
+                        "INSERT OR REPLACE INTO tile_cache_info (zoom_level, tile_column, tile_row, expiration, etag, last_modified) VALUES (?, ?, ?, ?, ?, ?)");
+                PreparedStatement expirationStatement = writeConnection.prepareStatement(
+                        "UPDATE tile_cache_info SET expiration=? WHERE zoom_level=? AND tile_column=? AND tile_row=?");
+                PreparedStatement expirationInsertStatement = writeConnection.prepareStatement(
+                        "INSERT OR IGNORE INTO tile_cache_info (zoom_level, tile_column, tile_row, expiration) VALUES (?, ?, ?, ?)")) {
+
+            for (TileWrite write : writes) {
+                byte[] buffer = write.cacheItem.getBuffer();
+
+                if (buffer == null) {
+                    expirationStatement.setLong(1, write.cacheItem.getExpiration());
+                    setTileParameters(expirationStatement, 2, write.zoomLevel, write.x, write.y);
+
+                    if (expirationStatement.executeUpdate() == 0) {
+                        setTileParameters(expirationInsertStatement, 1, write.zoomLevel, write.x, write.y);
+                        expirationInsertStatement.setLong(4, write.cacheItem.getExpiration());
+                        expirationInsertStatement.executeUpdate();
+                    }
+                } else {
+                    if (buffer.length > 0) {
+                        setTileParameters(tileStatement, 1, write.zoomLevel, write.x, write.y);
+                        tileStatement.setBytes(4, buffer);
+                        tileStatement.addBatch();
+                    } else {
+                        setTileParameters(deleteTileStatement, 1, write.zoomLevel, write.x, write.y);
+                        deleteTileStatement.addBatch();
+                    }
+
+                    setTileParameters(infoStatement, 1, write.zoomLevel, write.x, write.y);
+                    infoStatement.setLong(4, write.cacheItem.getExpiration());
+                    infoStatement.setString(5, write.cacheItem.getETag());
+                    infoStatement.setString(6, write.cacheItem.getLastModified());
+                    infoStatement.addBatch();
+                }
+            }
+
+            tileStatement.executeBatch();
+            deleteTileStatement.executeBatch();
+            infoStatement.executeBatch();
+            writeConnection.commit();
+
+        } catch (SQLException ex) {
+            writeConnection.rollback();
+            throw ex;
+        }
+    }
+
+    public synchronized void setMetadata(String name, String value) throws SQLException {
+        try (PreparedStatement statement = writeConnection.prepareStatement(
+                "INSERT OR IGNORE INTO metadata (name, value) VALUES (?, ?)")) {
+            statement.setString(1, name);
+            statement.setString(2, value);
+            statement.executeUpdate();
+            writeConnection.commit();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws SQLException {
+        List<Reader> closedReaders = new ArrayList<>();
+        readers.drainTo(closedReaders);
+
+        for (Reader reader : closedReaders) {
+            reader.connection.close();
+        }
+
+        if (writeConnection != null) {
+            writeConnection.close();
+            writeConnection = null;
+        }
+    }
+
+    /**
+     * Opens a reading connection. Connections to a database that is not writable are opened read-only, so that
+     * a shared MBTiles file is neither modified nor locked for writing. The open_mode connection property holds
+     * the sqlite3_open_v2 flags of org.xerial:sqlite-jdbc, and is ignored by other drivers.
+     */
+    private Connection openReadConnection() throws SQLException {
+        Properties properties = new Properties();
+
+        if (!writable) {
+            properties.setProperty("open_mode", String.valueOf(sqliteOpenReadOnly));
+        }
+
+        return DriverManager.getConnection("jdbc:sqlite:" + file.toAbsolutePath(), properties);
+    }
+
+    private Reader getReader() throws SQLException {
+        Reader reader = readers.poll();
+
+        if (reader == null) {
+            if (readerCount.incrementAndGet() <= maxReaders) {
+                try {
+                    reader = new Reader(openReadConnection());
+                } catch (SQLException ex) {
+                    readerCount.decrementAndGet();
+                    throw ex;
+                }
+            } else {
+                readerCount.decrementAndGet();
+
+                try {
+                    reader = readers.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException(ex);
+                }
+            }
+        }
+
+        return reader;
+    }
+
+    private void releaseReader(Reader reader) {
+        readers.offer(reader);
+    }
+
+    private static void setTileParameters(PreparedStatement statement, int index, int zoomLevel, int x, int y) throws SQLException {
+        statement.setInt(index, zoomLevel);
+        statement.setInt(index + 1, x);
+        statement.setInt(index + 2, (1 << zoomLevel) - 1 - y); // TMS tile row
+    }
+
+    public static class TileWrite {
+
+        public final int zoomLevel;
+        public final int x;
+        public final int y;
+        public final CacheItem cacheItem;
+
+        public TileWrite(int zoomLevel, int x, int y, CacheItem cacheItem) {
+            this.zoomLevel = zoomLevel;
+            this.x = x;
+            this.y = y;
+            this.cacheItem = cacheItem;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.scene.image.Image;
+
+/**
+ * TileSource that reads tile images directly from an MBTiles file. Requires an SQLite JDBC driver, e.g.
+ * org.xerial:sqlite-jdbc, at runtime.
+ */
+public class MBTilesTileSource extends TileSource implements AutoCloseable {
+
+    private static final int defaultMaxReaders = 4;
+
+    private final MBTilesDatabase database;
+
+    public MBTilesTileSource(Path file) throws Exception {
+        this(file, defaultMaxReaders);
+    }
+
+    public MBTilesTileSource(Path file, int maxReaders) throws Exception {
+        if (!Files.isRegularFile(file)) {
+            throw new IllegalArgumentException(file + " is not a file");
+        }
+
+        database = new MBTilesDatabase(file, false, maxReaders);
+    }
+
+    public final Path getFile() {
+        return database.getFile();
+    }
+
+    /**
+     * Gets the values of the metadata table, e.g. name, format, minzoom and maxzoom.
+     */
+    public Map<String, String> getMetadata() throws Exception {
+        return database.getMetadata();
+    }
+
+    @Override
+    public Image getImage(int x, int y, int zoomLevel, boolean backgroundLoading) {
+        try {
+            byte[] buffer = database.getTileData(zoomLevel, x, y);
+
+            if (buffer != null) {
+                return new Image(new ByteArrayInputStream(buffer));
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(MBTilesTileSource.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{getFile(), ex});
+        }
+
+        return null;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        database.close();
+    }
+}
@@ -380,6 +380,28 @@ public class MapBase extends Region implements IMapNode {
         viewCenter = center;
     }
 
+    /**
+     * Gets the center of the view transform in view coordinates. This is the view center, unless a different
+     * transform center was set by setTransformCenter, e.g. while zooming around the mouse position.
+     */
+    public final Point2D getTransformCenter() {
+        return viewCenter;
+    }
+
+    /**
+     * Gets a ViewTransform for the target values of the center, zoom level and heading animations, i.e. for the
+     * viewport that is displayed when all running animations have finished.
+     */
+    public final ViewTransform getTargetViewTransform() {
+        ViewTransform targetViewTransform = new ViewTransform();
+        Location center = transformCenter != null ? transformCenter : getTargetCenter();
+
+        targetViewTransform.setTransform(getProjection().locationToMap(center), viewCenter,
+                ViewTransform.zoomLevelToScale(getTargetZoomLevel()), getTargetHeading());
+
+        return targetViewTransform;
+    }
+
     public final void resetTransformCenter() {
         transformCenter = null;
         viewCenter = new Point2D(getWidth() / 2d, getHeight() / 2d);
@@ -449,6 +471,10 @@ public class MapBase extends Region implements IMapNode {
         return headingTransition.getStatus() == Animation.Status.RUNNING;
     }
 
+    public final boolean isAnimationRunning() {
+        return isCenterAnimationRunning() || isZoomLevelAnimationRunning() || isHeadingAnimationRunning();
+    }
+
     private Location adjustCenterProperty(ObjectProperty<Location> property, Location value) {
         double maxLatitude = getProjection().maxLatitude();
         internalUpdate = true;
@@ -5,11 +5,33 @@
 package fxmapcontrol;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.beans.property.ReadOnlyProperty;
 import javafx.geometry.Bounds;
 import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 
 /**
  * Displays web mercator map tiles.
@@ -23,8 +45,33 @@ public class MapTileLayer extends MapTileLayerBase {
 
     private int minZoomLevel;
     private int maxZoomLevel = 18;
+    private int prefetchRing;
+    private boolean prefetchAnimationTarget;
     private TileMatrix tileMatrix;
+    private TileMatrix targetTileMatrix;
     private ArrayList<Tile> tiles = new ArrayList<>();
+    private ArrayList<Tile> prefetchTiles = new ArrayList<>();
+    private boolean canvasRendering;
+    private final ArrayList<Canvas> canvases = new ArrayList<>(); // Canvas blocks, row by row
+    private int canvasBlockColumns;
+    private int canvasZoomLevel = -1;
+    private int canvasXMin;
+    private int canvasYMin;
+    private int canvasColumns;
+    private int canvasRows;
+    private final HashMap<ImageView, Tile> canvasTiles = new HashMap<>();
+    private final InvalidationListener tileImageListener = observable -> tileImageChanged(observable);
+    private final Set<Tile> composingTiles = new HashSet<>();
+
+    private static final int canvasMargin = 2; // tile columns and rows around the tile matrix
+    private static final int canvasBlockSize = 8; // tile columns and rows of a Canvas block, i.e. 2048x2048 pixels
+    private static final int maxPlaceholderLevels = 8; // 1x1 pixel part of a 256x256 ancestor tile image
+
+    private static final ExecutorService composer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MapTileLayer placeholder composer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static MapTileLayer getOpenStreetMapLayer() {
         return new MapTileLayer("OpenStreetMap", "http://tile.openstreetmap.org/{z}/{x}/{y}.png", 0, 19);
@@ -68,16 +115,72 @@ public class MapTileLayer extends MapTileLayerBase {
         this.maxZoomLevel = maxZoomLevel;
     }
 
+    /**
+     * Gets the number of tile rows and columns around the current tile matrix that are prefetched with low
+     * priority. The default value is zero, i.e. no tiles are prefetched.
+     */
+    public final int getPrefetchRing() {
+        return prefetchRing;
+    }
+
+    public final void setPrefetchRing(int prefetchRing) {
+        this.prefetchRing = Math.max(prefetchRing, 0);
+    }
+
+    /**
+     * Gets a value that indicates whether the tiles of the target viewport of a running map animation, e.g.
+     * started by zoomToBounds or by a double-click, are prefetched. The default value is false.
+     */
+    public final boolean getPrefetchAnimationTarget() {
+        return prefetchAnimationTarget;
+    }
+
+    public final void setPrefetchAnimationTarget(boolean prefetchAnimationTarget) {
+        this.prefetchAnimationTarget = prefetchAnimationTarget;
+    }
+
+    /**
+     * Gets a value that indicates whether tile images are drawn into Canvas nodes instead of being displayed
+     * by an ImageView per tile. The Canvas area covers the tile matrix and a margin of two tile columns and rows,
+     * so that panning within the margin only changes the layer transform. It is split into blocks of at most
+     * 2048x2048 pixels, which stay below the maximum texture size of the graphics pipelines. Only the regions of
+     * new tiles and of loaded tile images are redrawn. Tile images are not faded in. The default value is false.
+     */
+    public final boolean getCanvasRendering() {
+        return canvasRendering;
+    }
+
+    public final void setCanvasRendering(boolean canvasRendering) {
+        if (this.canvasRendering != canvasRendering) {
+            this.canvasRendering = canvasRendering;
+
+            detachCanvasTiles();
+            canvases.clear();
+            canvasZoomLevel = -1;
+            getChildren().clear();
+            updateTiles(false);
+        }
+    }
+
     @Override
     protected void updateTileLayer() {
         getUpdateTimeline().stop();
 
         if (getMap() == null || !getMap().getProjection().isWebMercator()) {
             tileMatrix = null;
+            targetTileMatrix = null;
             updateTiles(true);
-        } else if (setTileMatrix()) {
-            setTransform();
-            updateTiles(false);
+        } else {
+            boolean tileMatrixChanged = setTileMatrix();
+            boolean targetTileMatrixChanged = setTargetTileMatrix();
+
+            if (tileMatrixChanged) {
+                setTransform();
+            }
+
+            if (tileMatrixChanged || targetTileMatrixChanged) {
+                updateTiles(false);
+            }
         }
     }
 
@@ -95,13 +198,45 @@ public class MapTileLayer extends MapTileLayerBase {
 
     private boolean setTileMatrix() {
         MapBase map = getMap();
+        TileMatrix matrix = getTileMatrix(map.getViewTransform(), map.getZoomLevel());
 
-        int tileMatrixZoomLevel = (int) Math.floor(map.getZoomLevel() + 0.001); // avoid rounding issues
+        if (isSameTileMatrix(tileMatrix, matrix)) {
+            return false;
+        }
+
+        tileMatrix = matrix;
+        return true;
+    }
+
+    private boolean setTargetTileMatrix() {
+        MapBase map = getMap();
+        TileMatrix matrix = null;
+
+        if (prefetchAnimationTarget && map.isAnimationRunning()) {
+            matrix = getTileMatrix(map.getTargetViewTransform(), map.getTargetZoomLevel());
+
+            if (isSameTileMatrix(tileMatrix, matrix)) {
+                matrix = null;
+            }
+        }
+
+        if (isSameTileMatrix(targetTileMatrix, matrix)) {
+            return false;
+        }
+
+        targetTileMatrix = matrix;
+        return true;
+    }
+
+    private TileMatrix getTileMatrix(ViewTransform viewTransform, double zoomLevel) {
+        MapBase map = getMap();
+
+        int tileMatrixZoomLevel = (int) Math.floor(zoomLevel + 0.001); // avoid rounding issues
         double tileMatrixScale = ViewTransform.zoomLevelToScale(tileMatrixZoomLevel);
 
         // bounds in tile pixels from view size
         //
-        Bounds tileBounds = map.getViewTransform().getTileMatrixBounds(tileMatrixScale, MAP_TOP_LEFT, map.getWidth(), map.getHeight());
+        Bounds tileBounds = viewTransform.getTileMatrixBounds(tileMatrixScale, MAP_TOP_LEFT, map.getWidth(), map.getHeight());
 
         // tile column and row index bounds
         //
@@ -110,26 +245,33 @@ public class MapTileLayer extends MapTileLayerBase {
         int xMax = (int) Math.floor(tileBounds.getMaxX() / TILE_SIZE);
         int yMax = (int) Math.floor(tileBounds.getMaxY() / TILE_SIZE);
 
-        if (tileMatrix != null
-                && tileMatrix.getZoomLevel() == tileMatrixZoomLevel
-                && tileMatrix.getXMin() == xMin
-                && tileMatrix.getYMin() == yMin
-                && tileMatrix.getXMax() == xMax
-                && tileMatrix.getYMax() == yMax) {
-            return false;
-        }
+        return new TileMatrix(tileMatrixZoomLevel, xMin, yMin, xMax, yMax);
+    }
 
-        tileMatrix = new TileMatrix(tileMatrixZoomLevel, xMin, yMin, xMax, yMax);
-        return true;
+    private static boolean isSameTileMatrix(TileMatrix matrix1, TileMatrix matrix2) {
+        return matrix1 == matrix2 || matrix1 != null && matrix2 != null
+                && matrix1.getZoomLevel() == matrix2.getZoomLevel()
+                && matrix1.getXMin() == matrix2.getXMin()
+                && matrix1.getYMin() == matrix2.getYMin()
+                && matrix1.getXMax() == matrix2.getXMax()
+                && matrix1.getYMax() == matrix2.getYMax();
     }
 
     private void updateTiles(boolean clearTiles) {
+        ArrayList<Tile> oldVisibleTiles = tiles;
+
         if (clearTiles) {
+            canvasZoomLevel = -1;
             tiles.clear();
+            prefetchTiles.clear();
         }
 
         MapBase map = getMap();
+        TileIndex oldTiles = new TileIndex(tiles, prefetchTiles);
         ArrayList<Tile> newTiles = new ArrayList<>();
+        ArrayList<Tile> targetTiles = new ArrayList<>();
+        ArrayList<Tile> ringTiles = new ArrayList<>();
+        HashSet<Long> newTileKeys = new HashSet<>();
 
         if (map != null && tileMatrix != null && getTileSource() != null) {
             int maxZoom = Math.min(tileMatrix.getZoomLevel(), maxZoomLevel);
@@ -151,52 +293,475 @@ public class MapTileLayer extends MapTileLayerBase {
 
                     for (int ty = y1; ty <= y2; ty++) {
                         for (int tx = x1; tx <= x2; tx++) {
-                            int z = tz;
-                            int x = tx;
-                            int y = ty;
-                            Tile tile = tiles.stream()
-                                    .filter(t -> t.getZoomLevel() == z && t.getX() == x && t.getY() == y)
-                                    .findAny().orElse(null);
-
-                            if (tile == null) {
-                                tile = new Tile(z, x, y);
-                                int xIndex = tile.getXIndex();
-
-                                Tile equivalentTile = tiles.stream()
-                                        .filter(t -> t.getZoomLevel() == z && t.getXIndex() == xIndex && t.getY() == y && t.getImage() != null)
-                                        .findAny().orElse(null);
-
-                                if (equivalentTile != null) {
-                                    tile.setImage(equivalentTile.getImage(), false);
-                                }
-                            }
-
-                            newTiles.add(tile);
+                            newTiles.add(oldTiles.getTile(tz, tx, ty));
+                            newTileKeys.add(getTileKey(tz, tx, ty));
                         }
                     }
                 }
             }
+
+            if (targetTileMatrix != null
+                    && targetTileMatrix.getZoomLevel() >= minZoomLevel
+                    && targetTileMatrix.getZoomLevel() <= maxZoomLevel) {
+                addPrefetchTiles(targetTiles, oldTiles, targetTileMatrix, 0, newTileKeys);
+            }
+
+            if (prefetchRing > 0
+                    && tileMatrix.getZoomLevel() >= minZoomLevel
+                    && tileMatrix.getZoomLevel() <= maxZoomLevel) {
+                addPrefetchTiles(ringTiles, oldTiles, tileMatrix, prefetchRing, newTileKeys);
+            }
+        }
+
+        // show parts of loaded ancestor tile images, or images composed from loaded child tile images, until
+        // the tile images are loaded
+        //
+        for (Tile tile : newTiles) {
+            if (tile.isPending() && tile.getImage() == null) {
+                if (tile.getPlaceholderZoomLevel() <= tile.getZoomLevel() && !composingTiles.contains(tile)) {
+                    Image[] childImages = oldTiles.getChildImages(tile);
+
+                    if (childImages != null && TileImageLoader.getMemoryCacheImage(getTileSource(), getName(),
+                            tile.getZoomLevel(), tile.getXIndex(), tile.getY()) == null) {
+                        composePlaceholder(tile, childImages);
+                    }
+                }
+
+                oldTiles.setPlaceholder(tile, getTileSource(), getName());
+            }
         }
 
         tiles = newTiles;
+        prefetchTiles = new ArrayList<>(targetTiles);
+        prefetchTiles.addAll(ringTiles);
 
         if (tiles.isEmpty()) {
+            detachCanvasTiles();
             getChildren().clear();
 
         } else {
-            getChildren().setAll(tiles.stream()
-                    .map(tile -> {
-                        ImageView imageView = tile.getImageView();
-                        int tileSize = TILE_SIZE << (tileMatrix.getZoomLevel() - tile.getZoomLevel());
-                        imageView.setX(tileSize * tile.getX() - TILE_SIZE * tileMatrix.getXMin());
-                        imageView.setY(tileSize * tile.getY() - TILE_SIZE * tileMatrix.getYMin());
-                        imageView.setFitWidth(tileSize);
-                        imageView.setFitHeight(tileSize);
-                        return imageView;
-                    })
-                    .collect(Collectors.toList()));
-        }
-
-        getTileImageLoader().loadTiles(tiles, getTileSource(), getName());
+            Point2D mapCenter = map.getViewTransform().viewToMap(map.getTransformCenter());
+
+            setLoadPriorities(tiles, getTileDistance(mapCenter));
+
+            // tiles of the animation target are loaded before the prefetch ring
+            //
+            if (!targetTiles.isEmpty()) {
+                setLoadPriorities(targetTiles, tiles.size(),
+                        getTileDistance(map.getTargetViewTransform().viewToMap(map.getTransformCenter())));
+            }
+
+            setLoadPriorities(ringTiles, tiles.size() + targetTiles.size(), getTileDistance(mapCenter));
+
+            if (canvasRendering) {
+                updateCanvas(oldVisibleTiles);
+            } else {
+                updateChildren(getChildren(), tiles.stream()
+                        .map(tile -> {
+                            ImageView imageView = tile.getImageView();
+                            int tileSize = TILE_SIZE << (tileMatrix.getZoomLevel() - tile.getZoomLevel());
+                            imageView.setX(tileSize * tile.getX() - TILE_SIZE * tileMatrix.getXMin());
+                            imageView.setY(tileSize * tile.getY() - TILE_SIZE * tileMatrix.getYMin());
+                            imageView.setFitWidth(tileSize);
+                            imageView.setFitHeight(tileSize);
+                            return imageView;
+                        })
+                        .collect(Collectors.toList()));
+            }
+        }
+
+        if (prefetchTiles.isEmpty()) {
+            getTileImageLoader().loadTiles(tiles, getTileSource(), getName());
+        } else {
+            ArrayList<Tile> loadTiles = new ArrayList<>(tiles);
+            loadTiles.addAll(prefetchTiles);
+            getTileImageLoader().loadTiles(loadTiles, getTileSource(), getName());
+        }
+    }
+
+    /**
+     * Composes a placeholder image from child tile images on a background thread and shows it when the tile
+     * image is still not loaded.
+     */
+    private void composePlaceholder(Tile tile, Image[] childImages) {
+        composingTiles.add(tile);
+
+        CompletableFuture.supplyAsync(() -> composeImage(childImages), composer).whenComplete((image, ex) -> {
+            if (ex != null) {
+                Logger.getLogger(MapTileLayer.class.getName()).log(Level.WARNING, ex.toString());
+            }
+
+            Platform.runLater(() -> {
+                composingTiles.remove(tile);
+
+                if (image != null && tile.isPending() && tile.getImage() == null) {
+                    tile.setPlaceholder(image);
+                }
+            });
+        });
+    }
+
+    /**
+     * Composes an image from the images of the four child tiles of a tile, ordered top left, top right, bottom
+     * left and bottom right, with null elements for missing child images. The child images are scaled down by
+     * averaging 2x2 blocks of premultiplied pixels. Child images that differ in size from the first one are
+     * ignored.
+     */
+    private static Image composeImage(Image[] childImages) {
+        int width = 0;
+        int height = 0;
+
+        for (Image childImage : childImages) {
+            if (childImage != null && width == 0) {
+                width = (int) childImage.getWidth();
+                height = (int) childImage.getHeight();
+            }
+        }
+
+        if (width < 2 || height < 2) {
+            return null;
+        }
+
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        int[] pixels = new int[width * height];
+        int[] childPixels = new int[width * height];
+
+        for (int i = 0; i < 4; i++) {
+            Image childImage = childImages[i];
+
+            if (childImage != null
+                    && (int) childImage.getWidth() == width
+                    && (int) childImage.getHeight() == height
+                    && childImage.getPixelReader() != null) {
+
+                childImage.getPixelReader().getPixels(
+                        0, 0, width, height, PixelFormat.getIntArgbPreInstance(), childPixels, 0, width);
+
+                int x0 = (i % 2) * halfWidth;
+                int y0 = (i / 2) * halfHeight;
+
+                for (int y = 0; y < halfHeight; y++) {
+                    for (int x = 0; x < halfWidth; x++) {
+                        int p = 2 * (y * width + x);
+                        pixels[(y0 + y) * width + x0 + x] = average(
+                                childPixels[p], childPixels[p + 1], childPixels[p + width], childPixels[p + width + 1]);
+                    }
+                }
+            }
+        }
+
+        WritableImage image = new WritableImage(width, height);
+        image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), pixels, 0, width);
+        return image;
+    }
+
+    private static int average(int p1, int p2, int p3, int p4) {
+        int result = 0;
+
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = ((p1 >>> shift) & 0xFF) + ((p2 >>> shift) & 0xFF) + ((p3 >>> shift) & 0xFF) + ((p4 >>> shift) & 0xFF);
+            result |= ((sum + 2) >> 2) << shift;
+        }
+
+        return result;
+    }
+
+    /**
+     * Draws the visible tiles into the Canvas blocks. The blocks are only completely redrawn when the zoom level
+     * has changed or when the tile matrix has left the Canvas area, and are only reallocated when the size of the
+     * Canvas area has changed. Otherwise only the regions of new tiles are redrawn.
+     */
+    private void updateCanvas(List<Tile> oldVisibleTiles) {
+        int columns = tileMatrix.getXMax() - tileMatrix.getXMin() + 1;
+        int rows = tileMatrix.getYMax() - tileMatrix.getYMin() + 1;
+        boolean redraw = false;
+
+        if (canvasZoomLevel != tileMatrix.getZoomLevel()
+                || tileMatrix.getXMin() < canvasXMin
+                || tileMatrix.getYMin() < canvasYMin
+                || tileMatrix.getXMax() >= canvasXMin + canvasColumns
+                || tileMatrix.getYMax() >= canvasYMin + canvasRows) {
+
+            boolean resize = canvases.isEmpty()
+                    || canvasColumns != columns + 2 * canvasMargin
+                    || canvasRows != rows + 2 * canvasMargin;
+
+            canvasZoomLevel = tileMatrix.getZoomLevel();
+            canvasXMin = tileMatrix.getXMin() - canvasMargin;
+            canvasYMin = tileMatrix.getYMin() - canvasMargin;
+            canvasColumns = columns + 2 * canvasMargin;
+            canvasRows = rows + 2 * canvasMargin;
+
+            if (resize) {
+                createCanvasBlocks();
+            }
+
+            redraw = true;
+        }
+
+        if (!getChildren().equals(canvases)) {
+            getChildren().setAll(canvases);
+            redraw = true;
+        }
+
+        // the layer transform maps the tile matrix origin to the view
+        //
+        for (int i = 0; i < canvases.size(); i++) {
+            Canvas block = canvases.get(i);
+            block.setLayoutX(TILE_SIZE * (canvasXMin - tileMatrix.getXMin() + (i % canvasBlockColumns) * canvasBlockSize));
+            block.setLayoutY(TILE_SIZE * (canvasYMin - tileMatrix.getYMin() + (i / canvasBlockColumns) * canvasBlockSize));
+        }
+
+        detachCanvasTiles();
+
+        for (Tile tile : tiles) {
+            canvasTiles.put(tile.getImageView(), tile);
+            tile.getImageView().imageProperty().addListener(tileImageListener);
+        }
+
+        if (redraw) {
+            drawCanvas(0d, 0d, TILE_SIZE * canvasColumns, TILE_SIZE * canvasRows);
+        } else {
+            Set<Tile> oldTiles = Collections.newSetFromMap(new IdentityHashMap<>());
+            oldTiles.addAll(oldVisibleTiles);
+
+            tiles.stream().filter(tile -> !oldTiles.contains(tile)).forEach(this::drawCanvasTile);
+        }
+    }
+
+    private void createCanvasBlocks() {
+        int blockRows = (canvasRows + canvasBlockSize - 1) / canvasBlockSize;
+
+        canvasBlockColumns = (canvasColumns + canvasBlockSize - 1) / canvasBlockSize;
+        canvases.clear();
+
+        for (int by = 0; by < blockRows; by++) {
+            for (int bx = 0; bx < canvasBlockColumns; bx++) {
+                canvases.add(new Canvas(
+                        TILE_SIZE * Math.min(canvasBlockSize, canvasColumns - bx * canvasBlockSize),
+                        TILE_SIZE * Math.min(canvasBlockSize, canvasRows - by * canvasBlockSize)));
+            }
+        }
+    }
+
+    private void detachCanvasTiles() {
+        canvasTiles.keySet().forEach(imageView -> imageView.imageProperty().removeListener(tileImageListener));
+        canvasTiles.clear();
+    }
+
+    private void tileImageChanged(Observable observable) {
+        Tile tile = canvasTiles.get((ImageView) ((ReadOnlyProperty<?>) observable).getBean());
+
+        if (tile != null && !canvases.isEmpty()) {
+            drawCanvasTile(tile);
+        }
+    }
+
+    private void drawCanvasTile(Tile tile) {
+        int tileSize = TILE_SIZE << (canvasZoomLevel - tile.getZoomLevel());
+
+        drawCanvas(tileSize * tile.getX() - TILE_SIZE * canvasXMin, tileSize * tile.getY() - TILE_SIZE * canvasYMin,
+                tileSize, tileSize);
+    }
+
+    /**
+     * Redraws a region of the Canvas area, given in pixels relative to its top left corner, in all Canvas blocks
+     * that intersect the region.
+     */
+    private void drawCanvas(double x, double y, double width, double height) {
+        int blockPixels = TILE_SIZE * canvasBlockSize;
+
+        for (int i = 0; i < canvases.size(); i++) {
+            Canvas block = canvases.get(i);
+            double blockX = (i % canvasBlockColumns) * blockPixels;
+            double blockY = (i / canvasBlockColumns) * blockPixels;
+            double x1 = Math.max(x, blockX);
+            double y1 = Math.max(y, blockY);
+            double x2 = Math.min(x + width, blockX + block.getWidth());
+            double y2 = Math.min(y + height, blockY + block.getHeight());
+
+            if (x1 < x2 && y1 < y2) {
+                drawCanvasBlock(block, blockX, blockY, x1, y1, x2 - x1, y2 - y1);
+            }
+        }
+    }
+
+    /**
+     * Redraws a region of a Canvas block with all visible tiles that intersect the region, from the lowest
+     * background level to the current zoom level.
+     */
+    private void drawCanvasBlock(Canvas block, double blockX, double blockY,
+            double x, double y, double width, double height) {
+
+        GraphicsContext graphics = block.getGraphicsContext2D();
+
+        graphics.save();
+        graphics.translate(-blockX, -blockY);
+        graphics.clearRect(x, y, width, height);
+        graphics.beginPath();
+        graphics.rect(x, y, width, height);
+        graphics.clip();
+
+        for (Tile tile : tiles) {
+            Image image = tile.getImageView().getImage(); // tile image or placeholder
+
+            if (image != null) {
+                int tileSize = TILE_SIZE << (canvasZoomLevel - tile.getZoomLevel());
+                double tileX = tileSize * tile.getX() - TILE_SIZE * canvasXMin;
+                double tileY = tileSize * tile.getY() - TILE_SIZE * canvasYMin;
+
+                if (tileX < x + width && tileX + tileSize > x && tileY < y + height && tileY + tileSize > y) {
+                    Rectangle2D viewport = tile.getImageView().getViewport();
+
+                    if (viewport != null) {
+                        graphics.drawImage(image,
+                                viewport.getMinX(), viewport.getMinY(), viewport.getWidth(), viewport.getHeight(),
+                                tileX, tileY, tileSize, tileSize);
+                    } else {
+                        graphics.drawImage(image, tileX, tileY, tileSize, tileSize);
+                    }
+                }
+            }
+        }
+
+        graphics.restore();
+    }
+
+    /**
+     * Adds the tiles of a tile matrix, extended by ring rows and columns, that are not in excludedTileKeys, and
+     * adds their keys to excludedTileKeys.
+     */
+    private static void addPrefetchTiles(
+            List<Tile> prefetchTiles, TileIndex oldTiles, TileMatrix matrix, int ring, Set<Long> excludedTileKeys) {
+
+        int z = matrix.getZoomLevel();
+        int y1 = Math.max(matrix.getYMin() - ring, 0);
+        int y2 = Math.min(matrix.getYMax() + ring, (1 << z) - 1);
+
+        for (int y = y1; y <= y2; y++) {
+            for (int x = matrix.getXMin() - ring; x <= matrix.getXMax() + ring; x++) {
+                if (excludedTileKeys.add(getTileKey(z, x, y))) {
+                    prefetchTiles.add(oldTiles.getTile(z, x, y));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a key of zoom level, column and row of a tile. Columns outside the valid range, i.e. of wrapped
+     * tiles, are preserved.
+     */
+    private static long getTileKey(int z, int x, int y) {
+        return ((long) z << 56) | ((x & 0xFFFFFFFL) << 28) | (y & 0xFFFFFFFL);
+    }
+
+    /**
+     * Hash index of the tiles of a previous update, by zoom level, column and row, and of the tiles with an
+     * image by zoom level, column index and row, i.e. for equivalent wrapped tiles.
+     */
+    private static class TileIndex {
+
+        private final HashMap<Long, Tile> tiles = new HashMap<>();
+        private final HashMap<Long, Tile> imageTiles = new HashMap<>();
+        private final HashMap<Long, Image> memoryCacheImages = new HashMap<>();
+
+        @SafeVarargs
+        public TileIndex(List<Tile>... tileLists) {
+            for (List<Tile> tileList : tileLists) {
+                for (Tile tile : tileList) {
+                    tiles.putIfAbsent(getTileKey(tile.getZoomLevel(), tile.getX(), tile.getY()), tile);
+
+                    if (tile.getImage() != null) {
+                        imageTiles.putIfAbsent(getTileKey(tile.getZoomLevel(), tile.getXIndex(), tile.getY()), tile);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets an existing tile, or creates a new one that shows the image of an equivalent tile, if any.
+         */
+        public Tile getTile(int z, int x, int y) {
+            Tile tile = tiles.get(getTileKey(z, x, y));
+
+            if (tile == null) {
+                tile = new Tile(z, x, y);
+
+                Tile equivalentTile = imageTiles.get(getTileKey(z, tile.getXIndex(), y));
+
+                if (equivalentTile != null) {
+                    tile.setImage(equivalentTile.getImage(), false);
+                }
+            }
+
+            return tile;
+        }
+
+        /**
+         * Gets the images of the four child tiles of a tile, ordered top left, top right, bottom left and bottom
+         * right, or null when none of the child tiles has an image.
+         */
+        public Image[] getChildImages(Tile tile) {
+            Image[] childImages = new Image[4];
+            boolean found = false;
+
+            for (int i = 0; i < 4; i++) {
+                Tile child = imageTiles.get(getTileKey(
+                        tile.getZoomLevel() + 1, 2 * tile.getXIndex() + i % 2, 2 * tile.getY() + i / 2));
+
+                if (child != null) {
+                    childImages[i] = child.getImage();
+                    found = true;
+                }
+            }
+
+            return found ? childImages : null;
+        }
+
+        /**
+         * Shows the image of the nearest ancestor of a tile as placeholder, if it is nearer than the ancestor of
+         * a current placeholder. Ancestor images are taken from the indexed tiles or from the ImageMemoryCache.
+         */
+        public void setPlaceholder(Tile tile, TileSource tileSource, String tileSourceName) {
+            int minZoom = Math.max(tile.getPlaceholderZoomLevel() + 1, tile.getZoomLevel() - maxPlaceholderLevels);
+
+            for (int z = tile.getZoomLevel() - 1; z >= minZoom; z--) {
+                int levels = tile.getZoomLevel() - z;
+                int x = tile.getXIndex() >> levels;
+                int y = tile.getY() >> levels;
+                long key = getTileKey(z, x, y);
+                Tile ancestor = imageTiles.get(key);
+                Image image;
+
+                if (ancestor != null) {
+                    image = ancestor.getImage();
+                } else if (memoryCacheImages.containsKey(key)) {
+                    image = memoryCacheImages.get(key);
+                } else {
+                    image = TileImageLoader.getMemoryCacheImage(tileSource, tileSourceName, z, x, y);
+                    memoryCacheImages.put(key, image);
+                }
+
+                if (image != null) {
+                    tile.setPlaceholder(image, z);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the distance of a tile center from a point in map coordinates, in pixels at the zoom level of the tile.
+     */
+    private static ToDoubleFunction<Tile> getTileDistance(Point2D mapPoint) {
+        return tile -> {
+            double scale = ViewTransform.zoomLevelToScale(tile.getZoomLevel());
+
+            return new Point2D(
+                    scale * (mapPoint.getX() - MAP_TOP_LEFT.getX()),
+                    scale * (MAP_TOP_LEFT.getY() - mapPoint.getY()))
+                    .distance(TILE_SIZE * (tile.getX() + 0.5), TILE_SIZE * (tile.getY() + 0.5));
+        };
     }
 }
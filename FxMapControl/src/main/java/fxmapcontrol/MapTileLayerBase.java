@@ -4,13 +4,20 @@
  */
 package fxmapcontrol;
 
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
 
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
+import javafx.collections.ObservableList;
 import javafx.css.CssMetaData;
 import javafx.css.SimpleStyleableBooleanProperty;
 import javafx.css.SimpleStyleableObjectProperty;
@@ -18,6 +25,7 @@ import javafx.css.Styleable;
 import javafx.css.StyleableBooleanProperty;
 import javafx.css.StyleableObjectProperty;
 import javafx.css.StyleablePropertyFactory;
+import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.transform.Affine;
 import javafx.util.Duration;
@@ -162,6 +170,74 @@ public abstract class MapTileLayerBase extends Parent implements IMapNode {
         }
     }
 
+    /**
+     * Sets the load priorities of a list of tiles. Tiles with the highest zoom level, i.e. the tiles of the
+     * current tile matrix, are loaded first, followed by the background levels. Tiles with equal zoom level are
+     * ordered by their distance from the transform center of the map, as given by the distance function.
+     */
+    protected static void setLoadPriorities(List<Tile> tiles, ToDoubleFunction<Tile> distance) {
+        setLoadPriorities(tiles, 0, distance);
+    }
+
+    /**
+     * Sets the load priorities of a list of tiles, starting at firstPriority. Used for tiles that are loaded
+     * after others, e.g. prefetched tiles outside the viewport.
+     */
+    protected static void setLoadPriorities(List<Tile> tiles, int firstPriority, ToDoubleFunction<Tile> distance) {
+        List<Tile> sortedTiles = tiles.stream()
+                .sorted(Comparator.comparingInt(Tile::getZoomLevel).reversed().thenComparingDouble(distance))
+                .collect(Collectors.toList());
+
+        for (int i = 0; i < sortedTiles.size(); i++) {
+            sortedTiles.get(i).setLoadPriority(firstPriority + i);
+        }
+    }
+
+    /**
+     * Updates a list of children to contain the specified nodes in the specified order, by removing and inserting
+     * only the nodes that have changed, so that kept nodes are not removed and added again. Kept nodes are
+     * expected in the same relative order as in the nodes list, otherwise all children are replaced.
+     */
+    protected static void updateChildren(ObservableList<Node> children, List<? extends Node> nodes) {
+        Set<Node> nodeSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        nodeSet.addAll(nodes);
+
+        Set<Node> removedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        children.stream().filter(node -> !nodeSet.contains(node)).forEach(removedNodes::add);
+
+        if (!removedNodes.isEmpty()) {
+            children.removeAll(removedNodes);
+        }
+
+        Set<Node> keptNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        keptNodes.addAll(children);
+
+        int index = 0;
+
+        while (index < nodes.size()) {
+            if (index < children.size() && children.get(index) == nodes.get(index)) {
+                index++;
+                continue;
+            }
+
+            // insert a run of new nodes
+            //
+            int end = index;
+
+            while (end < nodes.size() && !keptNodes.contains(nodes.get(end))) {
+                end++;
+            }
+
+            if (end == index) { // kept nodes in different order
+                children.setAll(nodes);
+                return;
+            }
+
+            children.addAll(index, nodes.subList(index, end));
+            index = end;
+        }
+    }
+
     protected abstract void updateTileLayer();
 
     protected abstract void setTransform();
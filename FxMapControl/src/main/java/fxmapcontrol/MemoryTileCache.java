@@ -0,0 +1,218 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ITileCache decorator that keeps encoded tile image buffers in memory, in front of an optional backing
+ * ITileCache like ImageFileCache. The cache size is limited by the total number of buffer bytes. Least recently
+ * used buffers are evicted first. All items are written through to the backing cache.
+ * <p>
+ * Buffers are held in heap memory, or in direct ByteBuffers outside of the Java heap when the direct property
+ * is set. Heap buffers are stored without copying, so they must not be modified after they were passed to set.
+ */
+public class MemoryTileCache implements ITileCache {
+
+    private static final long defaultMaxSize = 256L * 1024 * 1024; // 256 MB
+
+    private static class CacheEntry {
+
+        public final ByteBuffer buffer;
+        public final long expiration;
+        public final String eTag;
+        public final String lastModified;
+
+        public CacheEntry(ByteBuffer buffer, long expiration, String eTag, String lastModified) {
+            this.buffer = buffer;
+            this.expiration = expiration;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private final ITileCache backingCache;
+    private final long maxSize;
+    private final boolean direct;
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public MemoryTileCache(ITileCache backingCache) {
+        this(backingCache, defaultMaxSize, false);
+    }
+
+    /**
+     * Creates a MemoryTileCache with the specified maximum number of buffer bytes. The backingCache argument
+     * may be null.
+     */
+    public MemoryTileCache(ITileCache backingCache, long maxSize, boolean direct) {
+        if (maxSize <= 0L) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+
+        this.backingCache = backingCache;
+        this.maxSize = maxSize;
+        this.direct = direct;
+    }
+
+    public final ITileCache getBackingCache() {
+        return backingCache;
+    }
+
+    public final long getMaxSize() {
+        return maxSize;
+    }
+
+    public final boolean isDirect() {
+        return direct;
+    }
+
+    @Override
+    public final synchronized long getSize() {
+        return size;
+    }
+
+    public final synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public final synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public final synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public final synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public CacheItem get(String key) {
+        CacheEntry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+
+            if (entry != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+        }
+
+        if (entry != null) {
+            return new CacheItem(getBytes(entry.buffer), entry.expiration, entry.eTag, entry.lastModified);
+        }
+
+        CacheItem cacheItem = backingCache != null ? backingCache.get(key) : null;
+
+        if (cacheItem != null) {
+            setEntry(key, cacheItem);
+        }
+
+        return cacheItem;
+    }
+
+    @Override
+    public long getExpiration(String key) {
+        CacheEntry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        return entry != null ? entry.expiration : backingCache != null ? backingCache.getExpiration(key) : 0;
+    }
+
+    @Override
+    public void set(String key, byte[] buffer, long expiration) {
+        set(key, new CacheItem(buffer, expiration));
+    }
+
+    @Override
+    public void set(String key, CacheItem cacheItem) {
+        setEntry(key, cacheItem);
+
+        if (backingCache != null) {
+            backingCache.set(key, cacheItem);
+        }
+    }
+
+    @Override
+    public void setExpiration(String key, long expiration) {
+        synchronized (this) {
+            CacheEntry entry = entries.get(key);
+
+            if (entry != null) {
+                entries.put(key, new CacheEntry(entry.buffer, expiration, entry.eTag, entry.lastModified));
+            }
+        }
+
+        if (backingCache != null) {
+            backingCache.setExpiration(key, expiration);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0L;
+    }
+
+    private void setEntry(String key, CacheItem cacheItem) {
+        byte[] bytes = cacheItem.getBuffer();
+
+        if (bytes.length > maxSize) {
+            return;
+        }
+
+        ByteBuffer buffer;
+
+        if (direct) {
+            buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes);
+            buffer.flip();
+        } else {
+            buffer = ByteBuffer.wrap(bytes);
+        }
+
+        CacheEntry entry = new CacheEntry(buffer, cacheItem.getExpiration(), cacheItem.getETag(), cacheItem.getLastModified());
+
+        synchronized (this) {
+            CacheEntry oldEntry = entries.put(key, entry);
+
+            if (oldEntry != null) {
+                size -= oldEntry.buffer.capacity();
+            }
+
+            size += buffer.capacity();
+
+            Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+
+            while (size > maxSize && iterator.hasNext()) {
+                size -= iterator.next().getValue().buffer.capacity();
+                iterator.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return buffer.array();
+        }
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of the keys of tile images that are known to be missing, e.g. because the server
+ * responded with 404 Not Found or with an "X-VE-Tile-Info: no-tile" header. Used by TileImageLoader to skip
+ * requests for these tiles until the entries expire. When no ITileCache is set, only 404 Not Found and 410 Gone
+ * responses are detected. Tiles of tile sources that are not cacheable are keyed by their URLs.
+ * <p>
+ * When the persistent property is set, missing tiles are also stored in the ITileCache, as CacheItems with an
+ * empty buffer.
+ */
+public class MissingTileCache {
+
+    private static final int defaultMaxEntries = 10000;
+    private static final int defaultExpiration = 3600 * 24; // one day
+
+    private final LinkedHashMap<String, Long> entries;
+    private final int maxEntries;
+    private final int expiration;
+    private final boolean persistent;
+
+    public MissingTileCache() {
+        this(defaultMaxEntries, defaultExpiration, false);
+    }
+
+    /**
+     * Creates a MissingTileCache with the specified maximum number of entries and expiration in seconds.
+     */
+    public MissingTileCache(int maxEntries, int expiration, boolean persistent) {
+        this.maxEntries = maxEntries;
+        this.expiration = expiration;
+        this.persistent = persistent;
+
+        entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MissingTileCache.this.maxEntries;
+            }
+        };
+    }
+
+    public final int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public final int getExpiration() {
+        return expiration;
+    }
+
+    public final boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * Checks if a tile image is known to be missing. Removes the entry when it has expired.
+     */
+    public synchronized boolean contains(String key) {
+        Long entryExpiration = entries.get(key);
+
+        if (entryExpiration == null) {
+            return false;
+        }
+
+        if (entryExpiration < new Date().getTime()) {
+            entries.remove(key);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds a missing tile image and returns the expiration of the new entry in milliseconds since
+     * 1970/01/01 00:00:00 UTC.
+     */
+    public synchronized long add(String key) {
+        long entryExpiration = new Date().getTime() + 1000L * expiration;
+
+        entries.put(key, entryExpiration);
+
+        return entryExpiration;
+    }
+
+    public synchronized void add(String key, long entryExpiration) {
+        entries.put(key, entryExpiration);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ITileCache decorator that collects TileCacheStatistics of a backing ITileCache, in total and per tile source
+ * name. The tile source name is taken from the cache key as created by TileImageLoader.getCacheKey.
+ */
+public class StatisticsTileCache implements ITileCache {
+
+    private static final String statisticsType = "TileCache";
+
+    private final ConcurrentHashMap<String, TileCacheStatistics> statistics = new ConcurrentHashMap<>();
+    private final ITileCache backingCache;
+    private final TileCacheStatistics totalStatistics;
+
+    public StatisticsTileCache(ITileCache backingCache) {
+        if (backingCache == null) {
+            throw new IllegalArgumentException("backingCache must not be null");
+        }
+
+        this.backingCache = backingCache;
+        totalStatistics = new TileCacheStatistics(statisticsType, null, backingCache::getSize);
+    }
+
+    public final ITileCache getBackingCache() {
+        return backingCache;
+    }
+
+    /**
+     * Gets the statistics of all tile sources.
+     */
+    public final TileCacheStatistics getStatistics() {
+        return totalStatistics;
+    }
+
+    /**
+     * Gets the statistics of a tile source, or null when the tile source was not yet accessed.
+     */
+    public final TileCacheStatistics getStatistics(String tileSourceName) {
+        return statistics.get(tileSourceName);
+    }
+
+    public final Collection<TileCacheStatistics> getTileSourceStatistics() {
+        return Collections.unmodifiableCollection(statistics.values());
+    }
+
+    /**
+     * Unregisters all TileCacheStatistics MXBeans of this instance.
+     */
+    public void unregisterMBeans() {
+        totalStatistics.unregisterMBean();
+        statistics.values().forEach(TileCacheStatistics::unregisterMBean);
+    }
+
+    @Override
+    public CacheItem get(String key) {
+        long start = System.nanoTime();
+        CacheItem cacheItem = backingCache.get(key);
+        long nanos = System.nanoTime() - start;
+
+        totalStatistics.recordRead(cacheItem, nanos);
+        getTileSourceStatistics(key).recordRead(cacheItem, nanos);
+
+        return cacheItem;
+    }
+
+    @Override
+    public long getExpiration(String key) {
+        return backingCache.getExpiration(key);
+    }
+
+    @Override
+    public void set(String key, byte[] buffer, long expiration) {
+        set(key, new CacheItem(buffer, expiration));
+    }
+
+    @Override
+    public void set(String key, CacheItem cacheItem) {
+        long start = System.nanoTime();
+        backingCache.set(key, cacheItem);
+        long nanos = System.nanoTime() - start;
+
+        totalStatistics.recordWrite(cacheItem.getBuffer().length, nanos);
+        getTileSourceStatistics(key).recordWrite(cacheItem.getBuffer().length, nanos);
+    }
+
+    @Override
+    public void setExpiration(String key, long expiration) {
+        backingCache.setExpiration(key, expiration);
+    }
+
+    @Override
+    public long getSize() {
+        return backingCache.getSize();
+    }
+
+    private TileCacheStatistics getTileSourceStatistics(String key) {
+        return statistics.computeIfAbsent(getTileSourceName(key),
+                name -> new TileCacheStatistics(statisticsType, name, null));
+    }
+
+    /**
+     * Gets the tile source name of a cache key, i.e. the part before the zoom level, column and row.
+     */
+    static String getTileSourceName(String key) {
+        int index = key.length();
+
+        for (int i = 0; i < 3 && index > 0; i++) {
+            index = key.lastIndexOf('/', index - 1);
+        }
+
+        return index > 0 ? key.substring(0, index) : "";
+    }
+}
@@ -5,6 +5,7 @@
 package fxmapcontrol;
 
 import javafx.animation.FadeTransition;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.util.Duration;
@@ -18,6 +19,8 @@ public class Tile {
     private final int y;
     private final ImageView imageView;
     private boolean pending;
+    private int loadPriority;
+    private int placeholderZoomLevel = -1;
 
     public Tile(int zoomLevel, int x, int y) {
         this.zoomLevel = zoomLevel;
@@ -50,18 +53,34 @@ public class Tile {
         return pending;
     }
 
+    /**
+     * Gets the priority for loading the tile image. Tiles with lower values are loaded first.
+     */
+    public final int getLoadPriority() {
+        return loadPriority;
+    }
+
+    public final void setLoadPriority(int loadPriority) {
+        this.loadPriority = loadPriority;
+    }
+
     public final ImageView getImageView() {
         return imageView;
     }
 
+    /**
+     * Gets the tile image, or null when no image is set or when the ImageView shows a placeholder.
+     */
     public final Image getImage() {
-        return imageView.getImage();
+        return placeholderZoomLevel < 0 ? imageView.getImage() : null;
     }
 
     public final void setImage(Image image, boolean fade) {
         pending = false;
 
         if (image != null) {
+            placeholderZoomLevel = -1;
+            imageView.setViewport(null);
             imageView.setImage(image);
             Duration fadeDuration;
             if (fade && (fadeDuration = MapBase.getImageFadeDuration()).greaterThan(Duration.ZERO)) {
@@ -73,4 +92,45 @@ public class Tile {
             }
         }
     }
+
+    /**
+     * Gets the zoom level of the tiles whose images are shown as placeholder, i.e. a lower zoom level for an
+     * ancestor tile image, the next higher zoom level for an image composed from child tile images, or -1 when
+     * there is no placeholder.
+     */
+    public final int getPlaceholderZoomLevel() {
+        return placeholderZoomLevel;
+    }
+
+    /**
+     * Shows the part of the image of an ancestor tile at a lower zoom level that covers this tile, until the
+     * tile image is set. The placeholder is shown without fading.
+     */
+    public final void setPlaceholder(Image image, int ancestorZoomLevel) {
+        int levels = zoomLevel - ancestorZoomLevel;
+
+        if (levels <= 0) {
+            throw new IllegalArgumentException("ancestorZoomLevel must be less than zoomLevel");
+        }
+
+        int mask = (1 << levels) - 1;
+        double width = image.getWidth() / (1 << levels);
+        double height = image.getHeight() / (1 << levels);
+
+        placeholderZoomLevel = ancestorZoomLevel;
+        imageView.setViewport(new Rectangle2D((getXIndex() & mask) * width, (y & mask) * height, width, height));
+        imageView.setImage(image);
+        imageView.setOpacity(1d);
+    }
+
+    /**
+     * Shows an image that was composed from the images of the four child tiles at the next higher zoom level,
+     * until the tile image is set.
+     */
+    public final void setPlaceholder(Image composedImage) {
+        placeholderZoomLevel = zoomLevel + 1;
+        imageView.setViewport(null);
+        imageView.setImage(composedImage);
+        imageView.setOpacity(1d);
+    }
 }
@@ -0,0 +1,617 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import fxmapcontrol.IHttpTransport.HttpResponse;
+import fxmapcontrol.ITileCache.CacheItem;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.geometry.Point2D;
+
+/**
+ * Downloads the web mercator map tiles of a region into an ITileCache, e.g. for offline use. Tiles are written
+ * under the same cache keys that are used by TileImageLoader.
+ * <p>
+ * Tiles that are still valid in the cache are skipped, so that an interrupted or cancelled seeding operation
+ * is resumed by simply starting it again.
+ */
+public class TileCacheSeeder {
+
+    private static final int defaultMaxParallelRequests = 4;
+    private static final int defaultHttpTimeout = 10; // seconds
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ITileCache tileCache;
+    private final TileSource tileSource;
+    private final String tileSourceName;
+    private int maxParallelRequests = defaultMaxParallelRequests;
+    private double maxRequestsPerSecond;
+    private int httpTimeout = defaultHttpTimeout;
+    private boolean skipValidEntries = true;
+
+    public TileCacheSeeder(ITileCache tileCache, MapTileLayer tileLayer) {
+        this(tileCache, tileLayer.getTileSource(), tileLayer.getName());
+    }
+
+    public TileCacheSeeder(ITileCache tileCache, TileSource tileSource, String tileSourceName) {
+        if (tileCache == null) {
+            throw new IllegalArgumentException("tileCache must not be null");
+        }
+
+        if (tileSource == null) {
+            throw new IllegalArgumentException("tileSource must not be null");
+        }
+
+        if (tileSourceName == null || tileSourceName.isEmpty()) {
+            throw new IllegalArgumentException("tileSourceName must not be null or empty");
+        }
+
+        this.tileCache = tileCache;
+        this.tileSource = tileSource;
+        this.tileSourceName = tileSourceName;
+    }
+
+    public final int getMaxParallelRequests() {
+        return maxParallelRequests;
+    }
+
+    public final void setMaxParallelRequests(int maxParallelRequests) {
+        this.maxParallelRequests = Math.max(maxParallelRequests, 1);
+    }
+
+    /**
+     * Gets the maximum number of HTTP requests per second. The default value is zero, i.e. no rate limit.
+     */
+    public final double getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    public final void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = Math.max(maxRequestsPerSecond, 0d);
+    }
+
+    /**
+     * Gets the HTTP request timeout in seconds.
+     */
+    public final int getHttpTimeout() {
+        return httpTimeout;
+    }
+
+    public final void setHttpTimeout(int httpTimeout) {
+        this.httpTimeout = httpTimeout;
+    }
+
+    /**
+     * Gets a value that indicates whether tiles are skipped when they are cached and not yet expired.
+     * The default value is true.
+     */
+    public final boolean getSkipValidEntries() {
+        return skipValidEntries;
+    }
+
+    public final void setSkipValidEntries(boolean skipValidEntries) {
+        this.skipValidEntries = skipValidEntries;
+    }
+
+    /**
+     * Gets the number of tiles in a bounding box in the specified zoom level range.
+     */
+    public static long getTileCount(MapBoundingBox boundingBox, int minZoomLevel, int maxZoomLevel) {
+        return new TileRegion(boundingBox, null, minZoomLevel, maxZoomLevel).getTileCount();
+    }
+
+    /**
+     * Gets the number of tiles that intersect a polygon in the specified zoom level range.
+     */
+    public static long getTileCount(List<Location> polygon, int minZoomLevel, int maxZoomLevel) {
+        return new TileRegion(getBoundingBox(polygon), polygon, minZoomLevel, maxZoomLevel).getTileCount();
+    }
+
+    /**
+     * Asynchronously seeds the cache with the tiles in a bounding box. The progress listener, which may be null,
+     * is called on a background thread after each tile. The returned future may be cancelled to stop seeding.
+     */
+    public CompletableFuture<Progress> seed(
+            MapBoundingBox boundingBox, int minZoomLevel, int maxZoomLevel, Consumer<Progress> progressListener) {
+
+        return seed(new TileRegion(boundingBox, null, minZoomLevel, maxZoomLevel), progressListener);
+    }
+
+    /**
+     * Asynchronously seeds the cache with the tiles that intersect a polygon.
+     */
+    public CompletableFuture<Progress> seed(
+            List<Location> polygon, int minZoomLevel, int maxZoomLevel, Consumer<Progress> progressListener) {
+
+        return seed(new TileRegion(getBoundingBox(polygon), polygon, minZoomLevel, maxZoomLevel), progressListener);
+    }
+
+    private CompletableFuture<Progress> seed(TileRegion region, Consumer<Progress> progressListener) {
+        SeedOperation operation = new SeedOperation(region, progressListener);
+
+        for (int i = 0; i < maxParallelRequests; i++) {
+            executor.execute(operation::run);
+        }
+
+        return operation.result;
+    }
+
+    private static MapBoundingBox getBoundingBox(List<Location> polygon) {
+        if (polygon == null || polygon.size() < 3) {
+            throw new IllegalArgumentException("polygon must have at least three locations");
+        }
+
+        return new MapBoundingBox(
+                polygon.stream().mapToDouble(Location::getLatitude).min().getAsDouble(),
+                polygon.stream().mapToDouble(Location::getLongitude).min().getAsDouble(),
+                polygon.stream().mapToDouble(Location::getLatitude).max().getAsDouble(),
+                polygon.stream().mapToDouble(Location::getLongitude).max().getAsDouble());
+    }
+
+    /**
+     * Snapshot of the progress of a seeding operation.
+     */
+    public static class Progress {
+
+        private final long tileCount;
+        private final long downloadedTiles;
+        private final long skippedTiles;
+        private final long missingTiles;
+        private final long failedTiles;
+
+        public Progress(long tileCount, long downloadedTiles, long skippedTiles, long missingTiles, long failedTiles) {
+            this.tileCount = tileCount;
+            this.downloadedTiles = downloadedTiles;
+            this.skippedTiles = skippedTiles;
+            this.missingTiles = missingTiles;
+            this.failedTiles = failedTiles;
+        }
+
+        public final long getTileCount() {
+            return tileCount;
+        }
+
+        /**
+         * Gets the number of tiles that were downloaded or revalidated.
+         */
+        public final long getDownloadedTiles() {
+            return downloadedTiles;
+        }
+
+        /**
+         * Gets the number of tiles that were skipped because they were still valid in the cache.
+         */
+        public final long getSkippedTiles() {
+            return skippedTiles;
+        }
+
+        /**
+         * Gets the number of tiles that are not available from the tile source.
+         */
+        public final long getMissingTiles() {
+            return missingTiles;
+        }
+
+        public final long getFailedTiles() {
+            return failedTiles;
+        }
+
+        public final long getCompletedTiles() {
+            return downloadedTiles + skippedTiles + missingTiles + failedTiles;
+        }
+    }
+
+    private enum TileResult {
+        DOWNLOADED, SKIPPED, MISSING, FAILED
+    }
+
+    private class SeedOperation {
+
+        public final CompletableFuture<Progress> result = new CompletableFuture<>();
+        private final TileRegion region;
+        private final Consumer<Progress> progressListener;
+        private final long tileCount;
+        private final long requestInterval; // nanoseconds
+        private final AtomicLong nextRequestTime = new AtomicLong(System.nanoTime());
+        private final AtomicLong downloadedTiles = new AtomicLong();
+        private final AtomicLong skippedTiles = new AtomicLong();
+        private final AtomicLong missingTiles = new AtomicLong();
+        private final AtomicLong failedTiles = new AtomicLong();
+        private final AtomicInteger runningTasks = new AtomicInteger(maxParallelRequests);
+        private final Set<CompletableFuture<HttpResponse>> activeRequests = ConcurrentHashMap.newKeySet();
+
+        public SeedOperation(TileRegion region, Consumer<Progress> progressListener) {
+            this.region = region;
+            this.progressListener = progressListener;
+            tileCount = region.getTileCount();
+            requestInterval = maxRequestsPerSecond > 0d ? (long) (1e9 / maxRequestsPerSecond) : 0L;
+
+            result.whenComplete((progress, exception) -> activeRequests.forEach(request -> request.cancel(true)));
+        }
+
+        public void run() {
+            try {
+                int[] tile;
+
+                while (!result.isDone() && (tile = region.nextTile()) != null) {
+                    TileResult tileResult = seedTile(tile[0], tile[1], tile[2]);
+
+                    switch (tileResult) {
+                        case DOWNLOADED:
+                            downloadedTiles.incrementAndGet();
+                            break;
+                        case SKIPPED:
+                            skippedTiles.incrementAndGet();
+                            break;
+                        case MISSING:
+                            missingTiles.incrementAndGet();
+                            break;
+                        default:
+                            failedTiles.incrementAndGet();
+                            break;
+                    }
+
+                    if (progressListener != null) {
+                        progressListener.accept(getProgress());
+                    }
+                }
+            } catch (CancellationException | InterruptedException ex) {
+                result.cancel(true);
+
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
+            }
+
+            if (runningTasks.decrementAndGet() == 0) {
+                result.complete(getProgress());
+            }
+        }
+
+        private Progress getProgress() {
+            return new Progress(tileCount, downloadedTiles.get(), skippedTiles.get(), missingTiles.get(), failedTiles.get());
+        }
+
+        private TileResult seedTile(int zoomLevel, int x, int y) throws InterruptedException {
+            String tileUrl = tileSource.getUrl(x, y, zoomLevel);
+
+            if (tileUrl == null) {
+                return TileResult.MISSING;
+            }
+
+            String cacheKey = TileImageLoader.getCacheKey(tileSourceName, zoomLevel, x, y, tileUrl);
+
+            if (skipValidEntries && tileCache.getExpiration(cacheKey) >= new Date().getTime()) {
+                return TileResult.SKIPPED; // checked without reading the cached buffer
+            }
+
+            CacheItem cacheItem = tileCache.get(cacheKey);
+
+            if (cacheItem != null && cacheItem.getBuffer().length == 0) {
+                cacheItem = null; // expired missing tile entry
+            }
+
+            waitForRequestTime();
+
+            CompletableFuture<HttpResponse> request = null;
+
+            try {
+                request = TileImageLoader.getHttpTransport().get(new URL(tileUrl),
+                        cacheItem != null ? TileImageLoader.getConditionalHeaders(cacheItem) : null,
+                        httpTimeout * 1000);
+
+                activeRequests.add(request);
+
+                if (result.isDone()) {
+                    request.cancel(true);
+                }
+
+                HttpResponse response = request.get();
+
+                if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED && cacheItem != null) {
+                    if (!TileImageLoader.isNoStore(response)) {
+                        tileCache.setExpiration(cacheKey, TileImageLoader.getCacheExpiration(response));
+                    }
+
+                    return TileResult.DOWNLOADED;
+                }
+
+                if (!TileImageLoader.isTileAvailable(response)) {
+                    MissingTileCache missingTileCache = TileImageLoader.getMissingTileCache();
+
+                    if (missingTileCache != null && missingTileCache.isPersistent()) {
+                        tileCache.set(cacheKey, new byte[0], missingTileCache.add(cacheKey));
+                    }
+
+                    return TileResult.MISSING;
+                }
+
+                if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+                    Logger.getLogger(TileCacheSeeder.class.getName()).log(Level.WARNING, "{0}: {1} {2}",
+                            new Object[]{tileUrl, response.getStatusCode(), response.getStatusMessage()});
+
+                    return TileResult.FAILED;
+                }
+
+                if (!TileImageLoader.isNoStore(response)) {
+                    tileCache.set(cacheKey, new CacheItem(response.getBuffer(), TileImageLoader.getCacheExpiration(response),
+                            response.getHeader("ETag"), response.getHeader("Last-Modified")));
+                }
+
+                return TileResult.DOWNLOADED;
+
+            } catch (InterruptedException ex) {
+                throw ex;
+
+            } catch (Exception ex) {
+                if (result.isCancelled()) {
+                    throw new CancellationException();
+                }
+
+                Logger.getLogger(TileCacheSeeder.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{tileUrl, ex});
+
+                return TileResult.FAILED;
+
+            } finally {
+                if (request != null) {
+                    activeRequests.remove(request);
+                }
+            }
+        }
+
+        private void waitForRequestTime() throws InterruptedException {
+            if (requestInterval > 0L) {
+                long now = System.nanoTime();
+                long requestTime = nextRequestTime.getAndAccumulate(now,
+                        (next, time) -> Math.max(next, time) + requestInterval);
+
+                requestTime = Math.max(requestTime, now);
+
+                if (requestTime > now) {
+                    Thread.sleep((requestTime - now) / 1000000L, (int) ((requestTime - now) % 1000000L));
+                }
+            }
+        }
+    }
+
+    /**
+     * Enumerates the tiles of a bounding box, optionally restricted to the tiles that intersect a polygon,
+     * ordered by zoom level, row and column.
+     */
+    private static class TileRegion {
+
+        private final MapBoundingBox boundingBox;
+        private final List<Point2D> polygon; // longitude, web mercator y in degrees
+        private final int minZoomLevel;
+        private final int maxZoomLevel;
+        private int zoomLevel;
+        private int x;
+        private int y;
+        private int xMin;
+        private int xMax;
+        private int yMax;
+        private double[] polygonX; // polygon in tile coordinates of the current zoom level
+        private double[] polygonY;
+
+        public TileRegion(MapBoundingBox boundingBox, List<Location> polygon, int minZoomLevel, int maxZoomLevel) {
+            if (boundingBox == null || !boundingBox.hasValidBounds()) {
+                throw new IllegalArgumentException("boundingBox must have valid bounds");
+            }
+
+            if (minZoomLevel < 0 || minZoomLevel > maxZoomLevel) {
+                throw new IllegalArgumentException("invalid zoom level range");
+            }
+
+            this.boundingBox = boundingBox;
+            this.minZoomLevel = minZoomLevel;
+            this.maxZoomLevel = maxZoomLevel;
+
+            if (polygon != null) {
+                this.polygon = new ArrayList<>();
+
+                polygon.forEach(location -> this.polygon.add(new Point2D(
+                        location.getLongitude(), WebMercatorProjection.latitudeToY(clampLatitude(location.getLatitude())))));
+            } else {
+                this.polygon = null;
+            }
+
+            setZoomLevel(minZoomLevel);
+        }
+
+        private TileRegion(TileRegion region) {
+            boundingBox = region.boundingBox;
+            polygon = region.polygon;
+            minZoomLevel = region.minZoomLevel;
+            maxZoomLevel = region.maxZoomLevel;
+
+            setZoomLevel(minZoomLevel);
+        }
+
+        public final long getTileCount() {
+            if (polygon == null) {
+                long count = 0;
+
+                for (int z = minZoomLevel; z <= maxZoomLevel; z++) {
+                    int[] bounds = getTileBounds(z);
+                    count += (long) (bounds[2] - bounds[0] + 1) * (bounds[3] - bounds[1] + 1);
+                }
+
+                return count;
+            }
+
+            TileRegion region = new TileRegion(this);
+            long count = 0;
+
+            while (region.nextTile() != null) {
+                count++;
+            }
+
+            return count;
+        }
+
+        public synchronized int[] nextTile() {
+            while (zoomLevel <= maxZoomLevel) {
+                if (x > xMax) {
+                    x = xMin;
+                    y++;
+                }
+
+                if (y > yMax) {
+                    if (++zoomLevel <= maxZoomLevel) {
+                        setZoomLevel(zoomLevel);
+                    }
+                    continue;
+                }
+
+                int tileX = x++;
+
+                if (polygon == null || intersectsPolygon(tileX, y)) {
+                    int numTiles = 1 << zoomLevel;
+
+                    return new int[]{zoomLevel, ((tileX % numTiles) + numTiles) % numTiles, y};
+                }
+            }
+
+            return null;
+        }
+
+        private void setZoomLevel(int z) {
+            int[] bounds = getTileBounds(z);
+            zoomLevel = z;
+            xMin = bounds[0];
+            y = bounds[1];
+            xMax = bounds[2];
+            yMax = bounds[3];
+            x = xMin;
+
+            if (polygon != null) {
+                polygonX = polygon.stream().mapToDouble(point -> getTileX(point.getX(), z)).toArray();
+                polygonY = polygon.stream().mapToDouble(point -> getTileY(point.getY(), z)).toArray();
+            }
+        }
+
+        /**
+         * Gets the column and row index bounds {xMin, yMin, xMax, yMax} of the bounding box. Column indices
+         * may be negative or exceed the number of columns, but do not span more than the number of columns.
+         */
+        private int[] getTileBounds(int z) {
+            int numTiles = 1 << z;
+            int x1 = (int) Math.floor(getTileX(boundingBox.getWest(), z));
+            int x2 = (int) Math.floor(getTileX(boundingBox.getEast(), z));
+            int y1 = (int) Math.floor(getTileY(WebMercatorProjection.latitudeToY(clampLatitude(boundingBox.getNorth())), z));
+            int y2 = (int) Math.floor(getTileY(WebMercatorProjection.latitudeToY(clampLatitude(boundingBox.getSouth())), z));
+
+            return new int[]{
+                x1,
+                Math.max(y1, 0),
+                Math.min(x2, x1 + numTiles - 1),
+                Math.min(y2, numTiles - 1)};
+        }
+
+        private boolean intersectsPolygon(int tileX, int tileY) {
+            double[] px = polygonX;
+            double[] py = polygonY;
+
+            double x1 = tileX;
+            double y1 = tileY;
+            double x2 = tileX + 1;
+            double y2 = tileY + 1;
+
+            // tile center inside polygon, i.e. tile is covered by the polygon or crossed by its edges
+            //
+            if (containsPoint(px, py, x1 + 0.5, y1 + 0.5)) {
+                return true;
+            }
+
+            for (int i = 0, j = px.length - 1; i < px.length; j = i++) {
+                if (intersectsSegment(x1, y1, x2, y2, px[j], py[j], px[i], py[i])) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private static boolean containsPoint(double[] px, double[] py, double x, double y) {
+            boolean contains = false;
+
+            for (int i = 0, j = px.length - 1; i < px.length; j = i++) {
+                if ((py[i] > y) != (py[j] > y)
+                        && x < (px[j] - px[i]) * (y - py[i]) / (py[j] - py[i]) + px[i]) {
+                    contains = !contains;
+                }
+            }
+
+            return contains;
+        }
+
+        /**
+         * Checks if a line segment intersects a rectangle by clipping the segment (Liang-Barsky).
+         */
+        private static boolean intersectsSegment(
+                double xMin, double yMin, double xMax, double yMax, double x1, double y1, double x2, double y2) {
+
+            double dx = x2 - x1;
+            double dy = y2 - y1;
+            double[] p = {-dx, dx, -dy, dy};
+            double[] q = {x1 - xMin, xMax - x1, y1 - yMin, yMax - y1};
+            double t0 = 0d;
+            double t1 = 1d;
+
+            for (int i = 0; i < 4; i++) {
+                if (p[i] == 0d) {
+                    if (q[i] < 0d) {
+                        return false;
+                    }
+                } else {
+                    double t = q[i] / p[i];
+
+                    if (p[i] < 0d) {
+                        t0 = Math.max(t0, t);
+                    } else {
+                        t1 = Math.min(t1, t);
+                    }
+
+                    if (t0 > t1) {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        private static double clampLatitude(double latitude) {
+            return Math.min(Math.max(latitude, -WebMercatorProjection.MAX_LATITUDE), WebMercatorProjection.MAX_LATITUDE);
+        }
+
+        private static double getTileX(double longitude, int z) {
+            return (longitude + 180d) / 360d * (1 << z);
+        }
+
+        private static double getTileY(double mercatorY, int z) {
+            return (180d - mercatorY) / 360d * (1 << z);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Tile cache statistics of a tile source, or of all tile sources when the tileSourceName property is null.
+ * Collected by StatisticsTileCache and TileImageLoader.
+ * <p>
+ * Read and write latencies are counted in a histogram with buckets of exponentially growing size, from below
+ * one microsecond to above one second. When the static registerMBeans property is set, TileCacheStatistics
+ * instances are registered as MXBeans on the platform MBeanServer, with ObjectNames like
+ * {@code fxmapcontrol:type=TileCache,name="OpenStreetMap"}.
+ */
+public class TileCacheStatistics implements TileCacheStatisticsMXBean {
+
+    private static final int bucketCount = 22; // 1, 2, 4, ... 2^20 microseconds, plus overflow bucket
+    private static volatile boolean registerMBeans;
+
+    private final String type;
+    private final String tileSourceName;
+    private final LongSupplier sizeSupplier;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder expiredHitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder writeCount = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder[] readLatencies = createHistogram();
+    private final LongAdder[] writeLatencies = createHistogram();
+    private ObjectName objectName;
+
+    /**
+     * Creates a TileCacheStatistics instance with a JMX type key, e.g. "TileCache", a tile source name, which
+     * may be null, and an optional supplier of the current cache size.
+     */
+    public TileCacheStatistics(String type, String tileSourceName, LongSupplier sizeSupplier) {
+        this.type = type;
+        this.tileSourceName = tileSourceName;
+        this.sizeSupplier = sizeSupplier;
+
+        if (registerMBeans) {
+            registerMBean();
+        }
+    }
+
+    public static boolean isRegisterMBeans() {
+        return registerMBeans;
+    }
+
+    /**
+     * Sets whether TileCacheStatistics instances that are created afterwards are registered as MXBeans.
+     */
+    public static void setRegisterMBeans(boolean register) {
+        registerMBeans = register;
+    }
+
+    @Override
+    public final String getTileSourceName() {
+        return tileSourceName;
+    }
+
+    @Override
+    public final long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public final long getExpiredHitCount() {
+        return expiredHitCount.sum();
+    }
+
+    @Override
+    public final long getMissCount() {
+        return missCount.sum();
+    }
+
+    @Override
+    public final double getHitRatio() {
+        long hits = hitCount.sum() + expiredHitCount.sum();
+        long reads = hits + missCount.sum();
+
+        return reads > 0 ? (double) hits / reads : 0d;
+    }
+
+    @Override
+    public final long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public final long getWriteCount() {
+        return writeCount.sum();
+    }
+
+    @Override
+    public final long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public final long getSize() {
+        return sizeSupplier != null ? sizeSupplier.getAsLong() : -1;
+    }
+
+    @Override
+    public final long[] getLatencyBucketLimits() {
+        long[] limits = new long[bucketCount - 1];
+
+        for (int i = 0; i < limits.length; i++) {
+            limits[i] = 1L << i;
+        }
+
+        return limits;
+    }
+
+    @Override
+    public final long[] getReadLatencyHistogram() {
+        return getCounts(readLatencies);
+    }
+
+    @Override
+    public final long[] getWriteLatencyHistogram() {
+        return getCounts(writeLatencies);
+    }
+
+    @Override
+    public final long getReadLatencyMedian() {
+        return getPercentile(readLatencies, 0.5);
+    }
+
+    @Override
+    public final long getReadLatency99thPercentile() {
+        return getPercentile(readLatencies, 0.99);
+    }
+
+    @Override
+    public final long getWriteLatencyMedian() {
+        return getPercentile(writeLatencies, 0.5);
+    }
+
+    @Override
+    public final long getWriteLatency99thPercentile() {
+        return getPercentile(writeLatencies, 0.99);
+    }
+
+    @Override
+    public void reset() {
+        hitCount.reset();
+        expiredHitCount.reset();
+        missCount.reset();
+        bytesRead.reset();
+        writeCount.reset();
+        bytesWritten.reset();
+
+        for (int i = 0; i < bucketCount; i++) {
+            readLatencies[i].reset();
+            writeLatencies[i].reset();
+        }
+    }
+
+    /**
+     * Registers this instance as MXBean on the platform MBeanServer, unless it is already registered.
+     */
+    public final synchronized void registerMBean() {
+        if (objectName == null) {
+            try {
+                ObjectName name = new ObjectName("fxmapcontrol:type=" + type
+                        + (tileSourceName != null ? ",name=" + ObjectName.quote(tileSourceName) : ""));
+
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+                objectName = name;
+
+            } catch (Exception ex) {
+                Logger.getLogger(TileCacheStatistics.class.getName()).log(Level.WARNING, ex.toString());
+            }
+        }
+    }
+
+    public final synchronized void unregisterMBean() {
+        if (objectName != null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (Exception ex) {
+                Logger.getLogger(TileCacheStatistics.class.getName()).log(Level.WARNING, ex.toString());
+            }
+
+            objectName = null;
+        }
+    }
+
+    /**
+     * Records the result of a cache read that took the specified number of nanoseconds.
+     */
+    void recordRead(ITileCache.CacheItem cacheItem, long nanos) {
+        if (cacheItem == null) {
+            missCount.increment();
+        } else {
+            if (cacheItem.getExpiration() >= new Date().getTime()) {
+                hitCount.increment();
+            } else {
+                expiredHitCount.increment();
+            }
+
+            bytesRead.add(cacheItem.getBuffer().length);
+        }
+
+        readLatencies[getBucket(nanos)].increment();
+    }
+
+    /**
+     * Records a cache hit that was served without reading a buffer, e.g. from the ImageMemoryCache.
+     */
+    void recordHit(long nanos) {
+        hitCount.increment();
+        readLatencies[getBucket(nanos)].increment();
+    }
+
+    void recordWrite(int bytes, long nanos) {
+        writeCount.increment();
+        bytesWritten.add(bytes);
+        writeLatencies[getBucket(nanos)].increment();
+    }
+
+    private static LongAdder[] createHistogram() {
+        LongAdder[] histogram = new LongAdder[bucketCount];
+
+        for (int i = 0; i < bucketCount; i++) {
+            histogram[i] = new LongAdder();
+        }
+
+        return histogram;
+    }
+
+    private static int getBucket(long nanos) {
+        long micros = nanos / 1000;
+
+        return micros > 0 ? Math.min(64 - Long.numberOfLeadingZeros(micros), bucketCount - 1) : 0;
+    }
+
+    private static long[] getCounts(LongAdder[] histogram) {
+        long[] counts = new long[bucketCount];
+
+        for (int i = 0; i < bucketCount; i++) {
+            counts[i] = histogram[i].sum();
+        }
+
+        return counts;
+    }
+
+    /**
+     * Gets the upper bucket limit of a percentile in microseconds, or -1 when there are no values or when the
+     * percentile is in the overflow bucket.
+     */
+    private static long getPercentile(LongAdder[] histogram, double percentile) {
+        long[] counts = getCounts(histogram);
+        long total = 0;
+
+        for (long count : counts) {
+            total += count;
+        }
+
+        long target = (long) Math.ceil(percentile * total);
+        long sum = 0;
+
+        for (int i = 0; i < bucketCount - 1 && total > 0; i++) {
+            sum += counts[i];
+
+            if (sum >= target) {
+                return 1L << i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+/**
+ * JMX management interface of TileCacheStatistics. Latencies are given in microseconds.
+ */
+public interface TileCacheStatisticsMXBean {
+
+    String getTileSourceName();
+
+    long getHitCount();
+
+    long getExpiredHitCount();
+
+    long getMissCount();
+
+    /**
+     * Gets the ratio of hits, including expired hits, to all reads.
+     */
+    double getHitRatio();
+
+    long getBytesRead();
+
+    long getWriteCount();
+
+    long getBytesWritten();
+
+    /**
+     * Gets the current size of the cache in bytes, or -1 when unknown.
+     */
+    long getSize();
+
+    /**
+     * Gets the upper limits of the latency histogram buckets. The last bucket has no upper limit.
+     */
+    long[] getLatencyBucketLimits();
+
+    long[] getReadLatencyHistogram();
+
+    long[] getWriteLatencyHistogram();
+
+    long getReadLatencyMedian();
+
+    long getReadLatency99thPercentile();
+
+    long getWriteLatencyMedian();
+
+    long getWriteLatency99thPercentile();
+
+    void reset();
+}
@@ -4,55 +4,198 @@
  */
 package fxmapcontrol;
 
+import fxmapcontrol.IHttpTransport.HttpResponse;
+import fxmapcontrol.IHttpTransport.TransferProgress;
 import fxmapcontrol.ITileCache.CacheItem;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import javafx.concurrent.Service;
-import javafx.concurrent.Task;
+import javafx.application.Platform;
 import javafx.scene.image.Image;
 
 /**
  * Default ITileImageLoader implementation. Optionally caches tile images in a static ITileCache instance.
+ * <p>
+ * Tiles are loaded in the order of their load priorities, which are set by the tile layer. Images are loaded
+ * and decoded by asynchronous tasks on a thread pool, and are passed in batches to the JavaFX Application Thread.
+ * <p>
+ * Cache lookups for all tiles passed to loadTiles are started at once by an IAsyncTileCache, so that cached
+ * images are not looked up one at a time by the load tasks.
+ * <p>
+ * When the static staleWhileRevalidate property is set, expired cached images are shown immediately, and are
+ * replaced when a refreshed image with different content has been downloaded.
  */
 public class TileImageLoader implements ITileImageLoader {
 
     private static final int defaultMaxTasks = 4;
     private static final int defaultHttpTimeout = 10; // seconds
     private static final int defaultCacheExpiration = 3600 * 24; // one day
+    private static final double defaultCancelReceivedRatio = 0.5;
 
-    private static final ExecutorService serviceExecutor = Executors.newCachedThreadPool(runnable -> {
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
         Thread thread = new Thread(runnable);
         thread.setDaemon(true);
         return thread;
     });
 
+    private static final ConcurrentHashMap<String, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, TileCacheStatistics> statistics = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> cacheKeyExtensions = new ConcurrentHashMap<>(); // by URL format
+
     private static ITileCache tileCache;
+    private static IAsyncTileCache asyncTileCache;
+    private static IHttpTransport httpTransport = new HttpUrlConnectionTransport();
+    private static volatile boolean staleWhileRevalidate;
+    private static MissingTileCache missingTileCache = new MissingTileCache();
+    private static ImageMemoryCache imageMemoryCache;
+    private static volatile int maxSharedImageSize;
+
+    // decoded images with identical content, by content hash
+    //
+    private static final ConcurrentHashMap<String, SharedImage> sharedImages = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Image> sharedImageQueue = new ReferenceQueue<>();
+
+    /**
+     * Gets the synchronous ITileCache, or null when an IAsyncTileCache is set that does not adapt an ITileCache.
+     */
+    public static ITileCache getCache() {
+        return tileCache;
+    }
 
+    /**
+     * Sets a synchronous ITileCache, which is accessed by an AsyncTileCacheAdapter.
+     */
     public static void setCache(ITileCache cache) {
         tileCache = cache;
+        asyncTileCache = cache != null ? new AsyncTileCacheAdapter(cache) : null;
+    }
+
+    public static IAsyncTileCache getAsyncCache() {
+        return asyncTileCache;
+    }
+
+    public static void setAsyncCache(IAsyncTileCache cache) {
+        asyncTileCache = cache;
+        tileCache = cache instanceof AsyncTileCacheAdapter ? ((AsyncTileCacheAdapter) cache).getCache() : null;
+    }
+
+    public static boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public static void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        TileImageLoader.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    public static MissingTileCache getMissingTileCache() {
+        return missingTileCache;
+    }
+
+    /**
+     * Sets the MissingTileCache that remembers tiles which are not available from their tile source.
+     * May be set to null to disable negative caching.
+     */
+    public static void setMissingTileCache(MissingTileCache cache) {
+        missingTileCache = cache;
+    }
+
+    public static ImageMemoryCache getImageMemoryCache() {
+        return imageMemoryCache;
+    }
+
+    /**
+     * Sets an ImageMemoryCache that holds decoded tile images and is accessed before the ITileCache, or before
+     * the TileSource when tiles are not cached.
+     * Shared by all TileImageLoader instances. The default value is null, i.e. no memory cache.
+     */
+    public static void setImageMemoryCache(ImageMemoryCache cache) {
+        imageMemoryCache = cache;
+    }
+
+    public static int getMaxSharedImageSize() {
+        return maxSharedImageSize;
+    }
+
+    /**
+     * Sets the maximum buffer size in bytes of tile images that are decoded only once and shared by all tiles with
+     * identical content, e.g. ocean tiles or transparent overlay tiles. The default value is zero, i.e. no sharing.
+     */
+    public static void setMaxSharedImageSize(int maxSize) {
+        maxSharedImageSize = maxSize;
+    }
+
+    /**
+     * Gets the cache statistics of a tile source as seen by the loaders, i.e. including ImageMemoryCache hits and
+     * the latency of pipelined cache lookups, or null when no tile of the tile source was loaded from the cache.
+     */
+    public static TileCacheStatistics getStatistics(String tileSourceName) {
+        return statistics.get(tileSourceName);
+    }
+
+    public static Collection<TileCacheStatistics> getStatistics() {
+        return Collections.unmodifiableCollection(statistics.values());
+    }
+
+    public static IHttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * Sets the IHttpTransport that is used to download tile images that are cached. Defaults to an
+     * HttpUrlConnectionTransport.
+     */
+    public static void setHttpTransport(IHttpTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport must not be null");
+        }
+
+        httpTransport = transport;
     }
 
     private final ConcurrentLinkedQueue<Tile> tileQueue = new ConcurrentLinkedQueue<>();
-    private final HashSet<LoadImageService> services = new HashSet<>();
+    private final ConcurrentLinkedQueue<LoadedTile> loadedTiles = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Tile, PendingRequest> loadingTiles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<CacheItem>> cacheLookups = new ConcurrentHashMap<>();
+    private final AtomicInteger loadTaskCount = new AtomicInteger();
+    private final AtomicBoolean updatePending = new AtomicBoolean();
     private final int maxLoadTasks;
     private final int httpTimeout;
+    private volatile TileSource tileSource;
+    private volatile String tileSourceName;
+    private CancelPolicy cancelPolicy = CancelPolicy.transferProgress(defaultCancelReceivedRatio);
 
     public TileImageLoader() {
         this(defaultMaxTasks, defaultHttpTimeout);
@@ -63,182 +206,812 @@ public class TileImageLoader implements ITileImageLoader {
         this.httpTimeout = httpTimeout * 1000;
     }
 
+    public final CancelPolicy getCancelPolicy() {
+        return cancelPolicy;
+    }
+
+    /**
+     * Sets the CancelPolicy that decides whether a pending request for a tile that is no longer contained
+     * in the tile collection passed to loadTiles is cancelled. The default policy lets requests complete when
+     * at least half of the response body has been received.
+     */
+    public final void setCancelPolicy(CancelPolicy cancelPolicy) {
+        if (cancelPolicy == null) {
+            throw new IllegalArgumentException("cancelPolicy must not be null");
+        }
+
+        this.cancelPolicy = cancelPolicy;
+    }
+
     @Override
     public void loadTiles(Collection<Tile> tiles, TileSource tileSource, String tileSourceName) {
-        tiles = tiles.stream().filter(tile -> tile.isPending()).collect(Collectors.toList());
+        cancelObsoleteRequests(tiles);
+
+        // reprioritize, i.e. replace queued tiles by the current pending tiles in the order of their load
+        // priorities. Tiles that are currently loaded by a load task are not affected and not queued again.
+        //
+        tiles = tiles.stream()
+                .filter(tile -> tile.isPending() && !loadingTiles.containsKey(tile))
+                .sorted(Comparator.comparingInt(Tile::getLoadPriority))
+                .collect(Collectors.toList());
         tileQueue.clear();
 
         if (tileSource != null && !tiles.isEmpty()) {
+            this.tileSource = tileSource;
+            this.tileSourceName = tileSourceName;
+            startCacheLookups(tiles, tileSource, tileSourceName);
             tileQueue.addAll(tiles);
 
-            int numServices = Math.min(tiles.size(), maxLoadTasks);
+            int numTasks = Math.min(tiles.size(), maxLoadTasks);
 
-            while (services.size() < numServices) {
-                services.add(new LoadImageService(tileSource, tileSourceName));
+            // stop when the queue was drained by load tasks that completed concurrently
+            //
+            while (startLoadTask(numTasks) && loadNextTile()) {
             }
         }
     }
 
-    private class LoadImageService extends Service<Image> {
-
-        private final TileSource tileSource;
-        private final String tileSourceName;
-        private Tile tile;
-
-        public LoadImageService(TileSource tileSource, String tileSourceName) {
-            this.tileSource = tileSource;
-            this.tileSourceName = tileSourceName;
-            setExecutor(serviceExecutor);
-            nextTile();
+    /**
+     * Detaches tiles that are not contained in the current tile collection from their pending requests, and
+     * cancels requests without any attached tile according to the CancelPolicy.
+     */
+    private void cancelObsoleteRequests(Collection<Tile> tiles) {
+        if (!loadingTiles.isEmpty()) {
+            Set<Tile> currentTiles = new HashSet<>(tiles);
+            long now = System.currentTimeMillis();
+
+            loadingTiles.forEach((tile, request) -> {
+                if (!currentTiles.contains(tile)
+                        && loadingTiles.remove(tile, request)
+                        && request.detach()
+                        && cancelPolicy.cancelRequest(tile, now - request.startTime,
+                                request.progress.getReceivedBytes(), request.progress.getContentLength())) {
+
+                    request.cancel();
+                }
+            });
         }
+    }
 
-        @Override
-        protected void failed() {
-            nextTile();
+    /**
+     * Starts cache lookups for all queued tiles in the order of their load priorities, unless the tile images
+     * are already requested, known as missing or held in the ImageMemoryCache. Lookups for tiles that are no
+     * longer queued are cancelled.
+     */
+    private void startCacheLookups(Collection<Tile> tiles, TileSource tileSource, String tileSourceName) {
+        IAsyncTileCache cache = asyncTileCache;
+        MissingTileCache missingTiles = missingTileCache;
+        ImageMemoryCache memoryCache = imageMemoryCache;
+        Set<String> cacheKeys = new HashSet<>();
+
+        if (cache != null && isCacheable(tileSource, tileSourceName)) {
+            for (Tile tile : tiles) {
+                String tileUrl = tileSource.getUrl(tile.getXIndex(), tile.getY(), tile.getZoomLevel());
+                String cacheKey = tileUrl != null
+                        ? getMemoryCacheKey(tileSource, tileSourceName,
+                                tile.getZoomLevel(), tile.getXIndex(), tile.getY(), tileUrl)
+                        : null;
+
+                if (cacheKey != null
+                        && !pendingRequests.containsKey(cacheKey)
+                        && (missingTiles == null || !missingTiles.contains(cacheKey))
+                        && (memoryCache == null || !memoryCache.contains(cacheKey))) {
+
+                    cacheKeys.add(cacheKey);
+                    cacheLookups.computeIfAbsent(cacheKey, cache::getAsync);
+                }
+            }
         }
 
-        @Override
-        protected void succeeded() {
-            tile.setImage(getValue(), true);
-            nextTile();
+        cacheLookups.forEach((cacheKey, lookup) -> {
+            if (!cacheKeys.contains(cacheKey) && cacheLookups.remove(cacheKey, lookup)) {
+                lookup.cancel(false);
+            }
+        });
+    }
+
+    private boolean startLoadTask(int maxTasks) {
+        int taskCount;
+
+        do {
+            taskCount = loadTaskCount.get();
+            if (taskCount >= maxTasks) {
+                return false;
+            }
+        } while (!loadTaskCount.compareAndSet(taskCount, taskCount + 1));
+
+        return true;
+    }
+
+    /**
+     * Starts loading the next queued tile image asynchronously. Continues with the next tile when done,
+     * until the queue is empty. Returns false when the queue was empty and the load task has ended.
+     */
+    private boolean loadNextTile() {
+        Tile tile = tileQueue.poll();
+
+        if (tile == null) {
+            loadTaskCount.decrementAndGet();
+
+            // tiles may have been queued by loadTiles after poll() and before decrementAndGet()
+            //
+            return !tileQueue.isEmpty() && startLoadTask(maxLoadTasks) && loadNextTile();
+        } else {
+            PendingRequest request = getRequest(tile, tileSource, tileSourceName);
+
+            loadingTiles.put(tile, request);
+
+            request.image.whenCompleteAsync((image, exception) -> {
+                if (exception == null) {
+                    tileLoaded(tile, image, null);
+
+                    if (request.refreshedImage != null) { // image is expired, replace when refreshed
+                        request.refreshedImage.thenAccept(refreshedImage -> {
+                            if (refreshedImage != null) {
+                                tileLoaded(tile, refreshedImage, image);
+                            }
+                        });
+                    }
+                } else { // failed or cancelled, keep tile pending
+                    loadingTiles.remove(tile, request);
+                }
+
+                loadNextTile();
+            }, executor);
+
+            return true;
         }
+    }
 
-        @Override
-        protected Task<Image> createTask() {
-            return new Task<Image>() {
-                @Override
-                protected Image call() throws Exception {
-                    return loadImage();
+    /**
+     * Passes a loaded tile image to the JavaFX Application Thread. Images that are loaded while a previous
+     * update is still pending are passed in the same batch.
+     */
+    private void tileLoaded(Tile tile, Image image, Image replacedImage) {
+        loadedTiles.add(new LoadedTile(tile, image, replacedImage));
+
+        if (updatePending.compareAndSet(false, true)) {
+            Platform.runLater(() -> {
+                updatePending.set(false);
+                LoadedTile loadedTile;
+
+                while ((loadedTile = loadedTiles.poll()) != null) {
+                    if (loadedTile.replacedImage == null) {
+                        loadedTile.tile.setImage(loadedTile.image, true);
+                        loadingTiles.remove(loadedTile.tile);
+
+                    } else if (loadedTile.tile.getImage() == loadedTile.replacedImage) {
+                        loadedTile.tile.setImage(loadedTile.image, false);
+                    }
                 }
-            };
+            });
         }
+    }
 
-        private void nextTile() {
-            tile = tileQueue.poll();
-            if (tile != null) {
-                restart();
-            } else {
-                services.remove(this);
+    /**
+     * Gets the key of a tile image in the ITileCache. The file extension of the key is taken from the tile URL.
+     */
+    public static String getCacheKey(String tileSourceName, int zoomLevel, int x, int y, String tileUrl) {
+        String extension = getCacheKeyExtension(tileUrl);
+
+        return extension != null ? buildCacheKey(tileSourceName, zoomLevel, x, y, extension) : null;
+    }
+
+    private static String buildCacheKey(String tileSourceName, int zoomLevel, int x, int y, String extension) {
+        return new StringBuilder(tileSourceName.length() + extension.length() + 24)
+                .append(tileSourceName).append('/')
+                .append(zoomLevel).append('/')
+                .append(x).append('/')
+                .append(y).append(extension)
+                .toString();
+    }
+
+    /**
+     * Gets the key of a tile image in the ImageMemoryCache, which is also its key in the ITileCache, or the tile
+     * URL when the tile source is not cacheable. The file extension of the key is only taken from a tile URL once
+     * per URL format, so that the key of a cacheable tile source is built without parsing the tile URL. When the
+     * tile URL is null, it is only created when needed.
+     */
+    private static String getMemoryCacheKey(
+            TileSource tileSource, String tileSourceName, int zoomLevel, int x, int y, String tileUrl) {
+
+        if (!isCacheable(tileSource, tileSourceName)) {
+            return tileUrl != null ? tileUrl : tileSource.getUrl(x, y, zoomLevel);
+        }
+
+        String extension = cacheKeyExtensions.get(tileSource.getUrlFormat());
+
+        if (extension == null) {
+            if (tileUrl == null) {
+                tileUrl = tileSource.getUrl(x, y, zoomLevel);
+            }
+
+            extension = tileUrl != null ? getCacheKeyExtension(tileUrl) : null;
+
+            if (extension == null) {
+                return null;
             }
+
+            cacheKeyExtensions.put(tileSource.getUrlFormat(), extension);
         }
 
-        private Image loadImage() throws Exception {
-            Image image;
+        return buildCacheKey(tileSourceName, zoomLevel, x, y, extension);
+    }
 
-            if (tileCache == null
-                    || tileSourceName == null
-                    || tileSourceName.isEmpty()
-                    || !tileSource.getUrlFormat().startsWith("http")) {
+    private static String getCacheKeyExtension(String tileUrl) {
+        String extension = null;
 
-                image = tileSource.getImage(tile.getXIndex(), tile.getY(), tile.getZoomLevel(), false);
+        try {
+            String fileName = Paths.get(new URL(tileUrl).getPath()).getFileName().toString();
+            int extIndex = fileName.lastIndexOf('.');
+            extension = extIndex > 0 ? fileName.substring(extIndex) : ".jpg";
+        } catch (Exception ex) {
+            Logger.getLogger(TileImageLoader.class.getName()).log(Level.WARNING, ex.toString());
+        }
+
+        return extension;
+    }
+
+    /**
+     * Gets a request that loads a tile image asynchronously on the loader thread pool, and attaches the tile.
+     * <p>
+     * Concurrent requests for the same image, e.g. from different tile layers with the same tile source, are
+     * identified by cache key or URL and share a single PendingRequest.
+     */
+    private PendingRequest getRequest(Tile tile, TileSource tileSource, String tileSourceName) {
+        String tileUrl = tileSource.getUrl(tile.getXIndex(), tile.getY(), tile.getZoomLevel());
+        String memoryCacheKey = tileUrl != null
+                ? getMemoryCacheKey(tileSource, tileSourceName, tile.getZoomLevel(), tile.getXIndex(), tile.getY(), tileUrl)
+                : null;
+        String cacheKey = asyncTileCache != null && isCacheable(tileSource, tileSourceName) ? memoryCacheKey : null;
+        String requestKey = memoryCacheKey != null ? memoryCacheKey : tileUrl;
+
+        while (true) {
+            PendingRequest request = new PendingRequest();
+            PendingRequest pendingRequest = requestKey != null ? pendingRequests.putIfAbsent(requestKey, request) : null;
+
+            if (pendingRequest != null) {
+                request = pendingRequest;
             } else {
-                image = loadCachedImage();
+                if (requestKey != null) {
+                    PendingRequest newRequest = request;
+                    request.image.whenComplete((image, exception) -> pendingRequests.remove(requestKey, newRequest));
+                }
+
+                startRequest(request, tile, tileSource, tileUrl, cacheKey, memoryCacheKey);
             }
 
-            return image;
+            if (request.attach()) { // fails if a pending request was cancelled meanwhile
+                return request;
+            }
         }
+    }
 
-        private Image loadCachedImage() throws Exception {
-            Image image = null;
-            String cacheKey = null;
-            CacheItem cacheItem = null;
-            URL tileUrl = new URL(tileSource.getUrl(tile.getXIndex(), tile.getY(), tile.getZoomLevel()));
+    private void startRequest(PendingRequest request, Tile tile, TileSource tileSource,
+            String tileUrl, String cacheKey, String memoryCacheKey) {
 
-            try {
-                String fileName = Paths.get(tileUrl.getPath()).getFileName().toString();
-                int extIndex = fileName.lastIndexOf('.');
-                String extension = extIndex > 0 ? fileName.substring(extIndex) : ".jpg";
+        IAsyncTileCache cache = asyncTileCache;
+        ImageMemoryCache memoryCache = imageMemoryCache;
+        long start = System.nanoTime();
+        Image memoryCacheImage = memoryCache != null && memoryCacheKey != null ? memoryCache.get(memoryCacheKey) : null;
+        CompletableFuture<Image> future;
+
+        if (memoryCacheImage != null) {
+            if (cacheKey != null) {
+                getCacheKeyStatistics(cacheKey).recordHit(System.nanoTime() - start);
+            }
+
+            future = CompletableFuture.completedFuture(memoryCacheImage);
 
-                cacheKey = String.format("%s/%d/%d/%d%s", tileSourceName, tile.getZoomLevel(), tile.getXIndex(), tile.getY(), extension);
+        } else if (cache != null && cacheKey != null) {
+            try {
+                future = loadCachedImage(cache, new URL(tileUrl), cacheKey, request);
             } catch (Exception ex) {
-                Logger.getLogger(TileImageLoader.class.getName()).log(Level.WARNING, ex.toString());
+                future = new CompletableFuture<>();
+                future.completeExceptionally(ex);
             }
+        } else {
+            MissingTileCache missingTiles = missingTileCache;
 
-            if (cacheKey != null && (cacheItem = tileCache.get(cacheKey)) != null) {
-                try {
-                    try (ByteArrayInputStream memoryStream = new ByteArrayInputStream(cacheItem.getBuffer())) {
-                        image = new Image(memoryStream);
+            if (memoryCacheKey != null && missingTiles != null && missingTiles.contains(memoryCacheKey)) {
+                future = CompletableFuture.completedFuture(null);
+            } else {
+                future = CompletableFuture.supplyAsync(
+                        () -> loadUncachedImage(tileSource, tile, tileUrl, memoryCacheKey), executor);
+            }
+        }
+
+        future.whenComplete((image, exception) -> {
+            if (exception != null) {
+                request.image.completeExceptionally(exception);
+            } else {
+                request.image.complete(image);
+            }
+        });
+    }
+
+    /**
+     * Loads a tile image by TileSource.getImage. A tile with a URL is added to the MissingTileCache, with its
+     * memory cache key, when the server responded with 404 Not Found or 410 Gone, which is reported as FileNotFoundException
+     * of the image. "No tile" response headers are only detected when tiles are cached. Loaded images are added
+     * to the ImageMemoryCache with the default cache expiration.
+     */
+    private static Image loadUncachedImage(TileSource tileSource, Tile tile, String tileUrl, String memoryCacheKey) {
+        Image image = tileSource.getImage(tile.getXIndex(), tile.getY(), tile.getZoomLevel(), false);
+        MissingTileCache missingTiles = missingTileCache;
+
+        if (memoryCacheKey != null && missingTiles != null
+                && image != null && image.isError() && image.getException() instanceof FileNotFoundException) {
+
+            missingTiles.add(memoryCacheKey);
+
+        } else if (memoryCacheKey != null && image != null && !image.isError()) {
+            setMemoryCacheImage(memoryCacheKey, image, new Date().getTime() + 1000L * defaultCacheExpiration);
+        }
+
+        return image;
+    }
+
+    /**
+     * Loads a cached tile image. Uses the cache lookup that was started by loadTiles, or starts a new lookup.
+     */
+    private CompletableFuture<Image> loadCachedImage(
+            IAsyncTileCache cache, URL tileUrl, String cacheKey, PendingRequest request) {
+
+        MissingTileCache missingTiles = missingTileCache;
+
+        if (missingTiles != null && missingTiles.contains(cacheKey)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        TileCacheStatistics sourceStatistics = getCacheKeyStatistics(cacheKey);
+        long start = System.nanoTime();
+        CompletableFuture<CacheItem> lookup = cacheLookups.remove(cacheKey);
+
+        if (lookup == null || lookup.isCancelled()) {
+            lookup = cache.getAsync(cacheKey);
+        }
+
+        return lookup
+                .exceptionally(ex -> logCacheError(cacheKey, ex))
+                .whenComplete((cacheItem, ex) -> sourceStatistics.recordRead(cacheItem, System.nanoTime() - start))
+                .thenComposeAsync(cacheItem -> request.image.isCancelled()
+                        ? CompletableFuture.completedFuture(null)
+                        : loadCachedImage(cache, tileUrl, cacheKey, request, cacheItem), executor);
+    }
+
+    private CompletableFuture<Image> loadCachedImage(
+            IAsyncTileCache cache, URL tileUrl, String cacheKey, PendingRequest request, CacheItem cacheItem) {
+
+        MissingTileCache missingTiles = missingTileCache;
+        Image image = null;
+
+        if (cacheItem != null) {
+            if (cacheItem.getBuffer().length == 0) { // persisted missing tile
+                if (cacheItem.getExpiration() >= new Date().getTime()) {
+                    if (missingTiles != null) {
+                        missingTiles.add(cacheKey, cacheItem.getExpiration());
                     }
+
+                    return CompletableFuture.completedFuture(null);
+                }
+            } else {
+                try {
+                    image = decodeImage(cacheItem.getBuffer());
                 } catch (Exception ex) {
                     Logger.getLogger(TileImageLoader.class.getName()).log(Level.WARNING, ex.toString());
                 }
             }
+        }
 
-            if (image == null
-                    || cacheItem == null
-                    || cacheItem.getExpiration() < new Date().getTime()) { // no cached image or cache expired
+        if (image != null) {
+            if (cacheItem.getExpiration() >= new Date().getTime()) { // cached image not expired
+                setMemoryCacheImage(cacheKey, image, cacheItem.getExpiration());
+                return CompletableFuture.completedFuture(image);
+            }
 
-                try {
-                    HttpURLConnection connection = (HttpURLConnection) tileUrl.openConnection();
-                    connection.setConnectTimeout(httpTimeout);
-                    connection.setReadTimeout(httpTimeout);
-                    connection.connect();
-
-                    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                        Logger.getLogger(TileImageLoader.class.getName()).log(Level.WARNING, "{0}: {1} {2}",
-                                new Object[]{tileUrl, connection.getResponseCode(), connection.getResponseMessage()});
-
-                    } else if (isTileAvailable(connection)) { // check headers
-                        try (ImageStream imageStream = new ImageStream(connection.getInputStream())) {
-                            image = imageStream.getImage();
-                            tileCache.set(cacheKey, imageStream.getBuffer(), getCacheExpiration(connection));
-                        }
+            if (staleWhileRevalidate) {
+                // return expired image immediately, and pass a changed image as refreshed image
+                //
+                Image cachedImage = image;
+
+                request.refreshedImage = downloadImage(cache, tileUrl, cacheKey, request, cacheItem, image)
+                        .thenApply(refreshedImage -> refreshedImage != cachedImage ? refreshedImage : null);
+
+                return CompletableFuture.completedFuture(image);
+            }
+        }
+
+        return downloadImage(cache, tileUrl, cacheKey, request, cacheItem, image);
+    }
+
+    /**
+     * Downloads and caches a tile image. Returns the cached image when the download fails or when the
+     * downloaded buffer is identical to the cached buffer.
+     * <p>
+     * When there is a cached image, the request is sent as conditional request with the validators of
+     * the CacheItem, so that the server may respond with 304 Not Modified.
+     */
+    private CompletableFuture<Image> downloadImage(IAsyncTileCache cache,
+            URL tileUrl, String cacheKey, PendingRequest request, CacheItem cacheItem, Image cachedImage) {
+
+        Map<String, String> requestHeaders = cachedImage != null ? getConditionalHeaders(cacheItem) : null;
+
+        return request.setResponse(httpTransport.get(tileUrl, requestHeaders, httpTimeout, request.progress)).handleAsync((response, exception) -> {
+            Image responseImage = cachedImage;
+
+            try {
+                if (exception != null) {
+                    throw exception instanceof CompletionException ? exception.getCause() : exception;
+                }
+
+                if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED && cachedImage != null) {
+                    if (cacheKey != null && !isNoStore(response)) {
+                        long expiration = getCacheExpiration(response);
+                        cache.setExpirationAsync(cacheKey, expiration).exceptionally(ex -> logCacheError(cacheKey, ex));
+                        setMemoryCacheImage(cacheKey, cachedImage, expiration);
                     }
-                } catch (Exception ex) {
-                    Logger.getLogger(TileImageLoader.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{tileUrl, ex});
 
-                    if (image == null) { // do not call tile.setImage(), i.e. keep tile pending
-                        throw ex;
+                } else if (!isTileAvailable(response)) { // check status and headers
+                    if (cachedImage == null) {
+                        setMissingTile(cache, cacheKey);
                     }
-                    // otherwise use cached image
+
+                } else if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+                    Logger.getLogger(TileImageLoader.class.getName()).log(Level.WARNING, "{0}: {1} {2}",
+                            new Object[]{tileUrl, response.getStatusCode(), response.getStatusMessage()});
+
+                } else {
+                    byte[] buffer = response.getBuffer();
+
+                    if (cachedImage == null || !Arrays.equals(cacheItem.getBuffer(), buffer)) {
+                        responseImage = decodeImage(buffer);
+                    }
+
+                    if (cacheKey != null && !isNoStore(response)) {
+                        long expiration = getCacheExpiration(response);
+                        long start = System.nanoTime();
+
+                        cache.setAsync(cacheKey, new CacheItem(buffer, expiration,
+                                response.getHeader("ETag"), response.getHeader("Last-Modified")))
+                                .whenComplete((v, ex) -> getCacheKeyStatistics(cacheKey)
+                                        .recordWrite(buffer.length, System.nanoTime() - start))
+                                .exceptionally(ex -> logCacheError(cacheKey, ex));
+                        setMemoryCacheImage(cacheKey, responseImage, expiration);
+                    }
+                }
+            } catch (CancellationException ex) {
+                throw ex;
+
+            } catch (Throwable ex) {
+                Logger.getLogger(TileImageLoader.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{tileUrl, ex});
+
+                if (cachedImage == null) { // do not call tile.setImage(), i.e. keep tile pending
+                    throw new CompletionException(ex);
+                }
+                // otherwise use cached image
+            }
+
+            return responseImage;
+        }, executor);
+    }
+
+    /**
+     * Decides whether a pending request for a tile image is cancelled when the tile is no longer needed, i.e.
+     * when it has dropped out of the current tile set of a tile layer. A request that is not cancelled completes
+     * and still populates the cache.
+     */
+    @FunctionalInterface
+    public interface CancelPolicy {
+
+        CancelPolicy ALWAYS = (tile, elapsedTime) -> true;
+
+        CancelPolicy NEVER = (tile, elapsedTime) -> false;
+
+        /**
+         * Returns true if the request for the specified tile should be cancelled. The elapsed time since the
+         * start of the request is given in milliseconds.
+         */
+        boolean cancelRequest(Tile tile, long elapsedTime);
+
+        /**
+         * Returns true if the request for the specified tile should be cancelled, by the elapsed time and the
+         * progress of the response body transfer. The contentLength is -1 when it is unknown, e.g. before the
+         * response headers were received, or when the image is not downloaded by an IHttpTransport. The default
+         * implementation calls cancelRequest(tile, elapsedTime).
+         */
+        default boolean cancelRequest(Tile tile, long elapsedTime, long receivedBytes, long contentLength) {
+            return cancelRequest(tile, elapsedTime);
+        }
+
+        /**
+         * Gets a CancelPolicy that lets requests complete when they have been running for at least the specified
+         * number of milliseconds, and cancels all other requests.
+         */
+        static CancelPolicy gracePeriod(long gracePeriod) {
+            return (tile, elapsedTime) -> elapsedTime < gracePeriod;
+        }
+
+        /**
+         * Gets a CancelPolicy that lets requests complete when at least the specified ratio of the response body
+         * has been received, i.e. when they are almost done, independent of the transfer rate. All other requests
+         * are cancelled, including requests without a known Content-Length.
+         */
+        static CancelPolicy transferProgress(double minReceivedRatio) {
+            return new CancelPolicy() {
+                @Override
+                public boolean cancelRequest(Tile tile, long elapsedTime) {
+                    return true;
                 }
+
+                @Override
+                public boolean cancelRequest(Tile tile, long elapsedTime, long receivedBytes, long contentLength) {
+                    return contentLength <= 0 || receivedBytes < minReceivedRatio * contentLength;
+                }
+            };
+        }
+    }
+
+    /**
+     * An asynchronous tile image request, possibly shared by multiple tiles.
+     */
+    private static class PendingRequest {
+
+        public final CompletableFuture<Image> image = new CompletableFuture<>();
+        public final long startTime = System.currentTimeMillis();
+        public final TransferProgress progress = new TransferProgress();
+        public volatile CompletableFuture<Image> refreshedImage; // set before image is completed
+        private CompletableFuture<?> response;
+        private int tileCount;
+
+        public synchronized boolean attach() {
+            if (image.isCancelled()) {
+                return false;
+            }
+
+            tileCount++;
+            return true;
+        }
+
+        /**
+         * Detaches a tile and returns true if no more tiles are attached.
+         */
+        public synchronized boolean detach() {
+            return --tileCount == 0;
+        }
+
+        public synchronized <T> CompletableFuture<T> setResponse(CompletableFuture<T> response) {
+            this.response = response;
+
+            if (image.isCancelled()) {
+                response.cancel(true);
+            }
+
+            return response;
+        }
+
+        public synchronized void cancel() {
+            if (tileCount == 0 && image.cancel(true) && response != null) {
+                response.cancel(true);
+            }
+        }
+    }
+
+    private static class LoadedTile {
+
+        public final Tile tile;
+        public final Image image;
+        public final Image replacedImage;
+
+        public LoadedTile(Tile tile, Image image, Image replacedImage) {
+            this.tile = tile;
+            this.image = image;
+            this.replacedImage = replacedImage;
+        }
+    }
+
+    /**
+     * A weakly referenced decoded image, shared by tiles with identical content.
+     */
+    private static class SharedImage extends WeakReference<Image> {
+
+        public final String hash;
+
+        public SharedImage(String hash, Image image) {
+            super(image, sharedImageQueue);
+            this.hash = hash;
+        }
+    }
+
+    private static Image decodeImage(byte[] buffer) throws IOException {
+        if (buffer.length > maxSharedImageSize) {
+            return decodeImageBuffer(buffer);
+        }
+
+        SharedImage sharedImage;
+
+        while ((sharedImage = (SharedImage) sharedImageQueue.poll()) != null) {
+            sharedImages.remove(sharedImage.hash, sharedImage);
+        }
+
+        String hash = DeduplicatingTileCache.getContentHash(buffer);
+        sharedImage = sharedImages.get(hash);
+        Image image = sharedImage != null ? sharedImage.get() : null;
+
+        if (image == null) {
+            image = decodeImageBuffer(buffer);
+
+            if (!image.isError()) {
+                sharedImages.put(hash, new SharedImage(hash, image));
             }
+        }
+
+        return image;
+    }
 
-            return image;
+    private static Image decodeImageBuffer(byte[] buffer) throws IOException {
+        try (ByteArrayInputStream memoryStream = new ByteArrayInputStream(buffer)) {
+            return new Image(memoryStream);
         }
     }
 
-    private static class ImageStream extends BufferedInputStream {
+    /**
+     * Gets the request headers for revalidating a cached tile image with its ETag and Last-Modified values.
+     */
+    static Map<String, String> getConditionalHeaders(CacheItem cacheItem) {
+        HashMap<String, String> headers = new HashMap<>();
 
-        public ImageStream(InputStream inputStream) {
-            super(inputStream);
+        if (cacheItem.getETag() != null) {
+            headers.put("If-None-Match", cacheItem.getETag());
         }
 
-        public byte[] getBuffer() {
-            return buf;
+        if (cacheItem.getLastModified() != null) {
+            headers.put("If-Modified-Since", cacheItem.getLastModified());
         }
 
-        public Image getImage() throws IOException {
-            mark(Integer.MAX_VALUE);
-            Image image = new Image(this);
-            reset();
-            return image;
+        return headers;
+    }
+
+    private static void setMemoryCacheImage(String cacheKey, Image image, long expiration) {
+        ImageMemoryCache memoryCache = imageMemoryCache;
+
+        if (memoryCache != null && image != null && !image.isError()) {
+            memoryCache.set(cacheKey, image, expiration);
+        }
+    }
+
+    private static void setMissingTile(IAsyncTileCache cache, String cacheKey) {
+        MissingTileCache missingTiles = missingTileCache;
+
+        if (missingTiles != null) {
+            long expiration = missingTiles.add(cacheKey);
+
+            if (missingTiles.isPersistent()) {
+                cache.setAsync(cacheKey, new CacheItem(new byte[0], expiration))
+                        .exceptionally(ex -> logCacheError(cacheKey, ex));
+            }
         }
     }
 
-    private static boolean isTileAvailable(HttpURLConnection connection) {
-        String tileInfo = connection.getHeaderField("X-VE-Tile-Info");
+    /**
+     * Gets a decoded tile image from the ImageMemoryCache, if any, without affecting the cache statistics.
+     * <p>
+     * This is called on the JavaFX Application Thread for placeholder lookups. It uses the same key as the loaders
+     * use for adding images, with or without an ITileCache.
+     */
+    static Image getMemoryCacheImage(TileSource tileSource, String tileSourceName, int zoomLevel, int x, int y) {
+        ImageMemoryCache memoryCache = imageMemoryCache;
+
+        if (memoryCache != null) {
+            String memoryCacheKey = getMemoryCacheKey(tileSource, tileSourceName, zoomLevel, x, y, null);
+
+            if (memoryCacheKey != null) {
+                return memoryCache.peek(memoryCacheKey);
+            }
+        }
+
+        return null;
+    }
+
+    private static TileCacheStatistics getCacheKeyStatistics(String cacheKey) {
+        return statistics.computeIfAbsent(StatisticsTileCache.getTileSourceName(cacheKey),
+                name -> new TileCacheStatistics("TileImageLoader", name, null));
+    }
+
+    private static <T> T logCacheError(String cacheKey, Throwable ex) {
+        Logger.getLogger(TileImageLoader.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{cacheKey, ex});
+        return null;
+    }
+
+    private static boolean isCacheable(TileSource tileSource, String tileSourceName) {
+        return tileSourceName != null
+                && !tileSourceName.isEmpty()
+                && tileSource.getUrlFormat().startsWith("http");
+    }
+
+    static boolean isTileAvailable(HttpResponse response) {
+        switch (response.getStatusCode()) {
+            case HttpURLConnection.HTTP_NO_CONTENT:
+            case HttpURLConnection.HTTP_NOT_FOUND:
+            case HttpURLConnection.HTTP_GONE:
+                return false;
+        }
+
+        String tileInfo = response.getHeader("X-VE-Tile-Info");
 
         return tileInfo == null || !tileInfo.contains("no-tile");
     }
 
-    private static long getCacheExpiration(HttpURLConnection connection) {
-        int expiration = defaultCacheExpiration;
-        String cacheControl = connection.getHeaderField("cache-control");
+    static boolean isNoStore(HttpResponse response) {
+        return getCacheControlDirectives(response).contains("no-store");
+    }
+
+    /**
+     * Gets the cache expiration from the Cache-Control header of a response, where s-maxage takes precedence
+     * over max-age, and no-cache means immediate expiration. Without these directives, the expiration is taken
+     * from the Expires header, relative to the Date header when present. Otherwise defaultCacheExpiration is used.
+     */
+    static long getCacheExpiration(HttpResponse response) {
+        long now = new Date().getTime();
+        List<String> directives = getCacheControlDirectives(response);
+
+        if (directives.contains("no-cache")) {
+            return now;
+        }
 
-        if (cacheControl != null) {
-            String maxAge = Arrays.stream(cacheControl.split(","))
-                    .filter(s -> s.contains("max-age="))
-                    .findFirst().orElse(null);
+        Long maxAge = getMaxAge(directives, "s-maxage=");
 
-            if (maxAge != null) {
-                try {
-                    expiration = Math.max(Integer.parseInt(maxAge.trim().substring(8)), 0);
-                } catch (NumberFormatException ex) {
+        if (maxAge == null) {
+            maxAge = getMaxAge(directives, "max-age=");
+        }
+
+        if (maxAge != null) {
+            return now + 1000L * maxAge;
+        }
+
+        String expires = response.getHeader("Expires");
+
+        if (expires != null) {
+            try {
+                long expiresTime = ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                String date = response.getHeader("Date");
+
+                if (date != null) { // compensate for clock differences
+                    expiresTime += now - ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
                 }
+
+                return Math.max(expiresTime, now);
+
+            } catch (DateTimeParseException ex) {
+                return now; // invalid Expires values mean "already expired"
+            }
+        }
+
+        return now + 1000L * defaultCacheExpiration;
+    }
+
+    private static List<String> getCacheControlDirectives(HttpResponse response) {
+        String cacheControl = response.getHeader("Cache-Control");
+
+        return cacheControl != null
+                ? Arrays.stream(cacheControl.split(","))
+                        .map(directive -> directive.trim().toLowerCase(Locale.ROOT))
+                        .collect(Collectors.toList())
+                : Collections.emptyList();
+    }
+
+    private static Long getMaxAge(List<String> directives, String prefix) {
+        String maxAge = directives.stream()
+                .filter(directive -> directive.startsWith(prefix))
+                .findFirst().orElse(null);
+
+        if (maxAge != null) {
+            try {
+                return Math.max(Long.parseLong(maxAge.substring(prefix.length())), 0L);
+            } catch (NumberFormatException ex) {
             }
         }
 
-        return new Date().getTime() + 1000L * expiration;
+        return null;
     }
 }
@@ -0,0 +1,821 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * ITileCache implementation that appends tile image buffers to large segment files in a directory, which are
+ * accessed as memory-mapped files. Cache keys are mapped to records by a hash index that is held in a direct
+ * ByteBuffer outside of the Java heap.
+ * <p>
+ * The index is saved when the cache is closed, and is rebuilt from the segment files when it is missing,
+ * e.g. after a crash. Records are protected by a checksum, so that an incompletely written record at the end of
+ * a segment is ignored. Space used by superseded records is reclaimed by the compact method.
+ * <p>
+ * Segment files and their mappings grow with the appended records, by doubling their size from 1 MB and then in
+ * steps of 16 MB, up to the maximum segment size. A small cache therefore does not allocate the maximum segment
+ * size on disk, also on file systems without sparse files.
+ * <p>
+ * Segment files that are still memory-mapped can not be deleted on some platforms, e.g. Windows. The names of
+ * compacted segment files that could not be deleted are saved, and the files are deleted before the segments
+ * are mapped when the cache is opened again.
+ */
+public class TilePackCache implements ITileCache, AutoCloseable {
+
+    private static final int defaultMaxSegmentSize = 256 * 1024 * 1024;
+    private static final int minSegmentCapacity = 1024 * 1024;
+    private static final int maxSegmentGrowth = 16 * 1024 * 1024;
+    private static final int minIndexCapacity = 1024;
+    private static final String segmentFileExtension = ".pack";
+    private static final String indexFileName = "index.dat";
+    private static final String compactedFileName = "compacted.txt";
+
+    // Record layout, little endian: int32 magic, int32 key length, int32 ETag length, int32 Last-Modified length
+    // (-1 for null values), int32 buffer length, int64 expiration, int32 CRC32, followed by the UTF-8 encoded key,
+    // ETag and Last-Modified values and the buffer. Records are aligned to 8 bytes. The checksum covers all parts
+    // of a record except magic, expiration and checksum itself, so that the expiration can be updated in place.
+    //
+    private static final int recordMagic = 0x314B5054; // "TPK1"
+    private static final int recordHeaderSize = 32;
+    private static final int expirationOffset = 20;
+    private static final int checksumOffset = 28;
+
+    // Index slot layout: int64 key hash (0 for empty slots), int32 segment id, int32 record offset,
+    // int32 record length, int32 unused, int64 expiration.
+    //
+    private static final int indexMagic = 0x494B5054; // "TPKI"
+    private static final int slotSize = 32;
+
+    private static class Segment {
+
+        public final int id;
+        public final Path path;
+        public final FileChannel channel;
+        public MappedByteBuffer buffer; // replaced when the segment grows
+        public int end;
+        public long liveBytes;
+
+        public Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int maxSegmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final List<Path> compactedFiles = new ArrayList<>(); // compacted segment files not yet deleted
+    private Segment writeSegment;
+    private ByteBuffer index;
+    private int indexCapacity;
+    private int entryCount;
+    private boolean closed;
+
+    public TilePackCache(Path directory) throws IOException {
+        this(directory, defaultMaxSegmentSize);
+    }
+
+    /**
+     * Opens or creates a TilePackCache in the specified directory, with segment files of the specified maximum
+     * size in bytes. The segment size of an existing cache must not be changed.
+     */
+    public TilePackCache(Path directory, int maxSegmentSize) throws IOException {
+        if (maxSegmentSize < recordHeaderSize) {
+            throw new IllegalArgumentException("maxSegmentSize is too small");
+        }
+
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+
+        Files.createDirectories(directory);
+        loadCompactedFiles();
+        deleteCompactedFiles();
+        saveCompactedFiles();
+
+        for (int id : getSegmentIds()) {
+            segments.put(id, openSegment(id));
+        }
+
+        if (!loadIndex()) {
+            rebuildIndex();
+        }
+
+        if (!segments.isEmpty()) {
+            writeSegment = segments.lastEntry().getValue();
+        }
+    }
+
+    public final Path getDirectory() {
+        return directory;
+    }
+
+    public final int getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    public final int getEntryCount() {
+        lock.readLock().lock();
+        try {
+            return entryCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CacheItem get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        lock.readLock().lock();
+        try {
+            int slot = closed ? -1 : findSlot(keyBytes, getHash(keyBytes));
+
+            if (slot < 0) {
+                return null;
+            }
+
+            int slotPosition = slot * slotSize;
+            Segment segment = segments.get(index.getInt(slotPosition + 8));
+            ByteBuffer record = getRecord(segment, index.getInt(slotPosition + 12));
+            int eTagLength = record.getInt(8);
+            int lastModifiedLength = record.getInt(12);
+            int bufferLength = record.getInt(16);
+
+            record.position(recordHeaderSize + keyBytes.length);
+
+            String eTag = readString(record, eTagLength);
+            String lastModified = readString(record, lastModifiedLength);
+            byte[] buffer = new byte[bufferLength];
+            record.get(buffer);
+
+            return new CacheItem(buffer, index.getLong(slotPosition + 24), eTag, lastModified);
+
+        } catch (Exception ex) {
+            Logger.getLogger(TilePackCache.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{key, ex});
+            return null;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void set(String key, byte[] buffer, long expiration) {
+        set(key, new CacheItem(buffer, expiration));
+    }
+
+    @Override
+    public void set(String key, CacheItem cacheItem) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] eTagBytes = cacheItem.getETag() != null ? cacheItem.getETag().getBytes(StandardCharsets.UTF_8) : null;
+        byte[] lastModifiedBytes = cacheItem.getLastModified() != null ? cacheItem.getLastModified().getBytes(StandardCharsets.UTF_8) : null;
+        byte[] buffer = cacheItem.getBuffer();
+
+        long length = recordHeaderSize + (long) keyBytes.length + buffer.length
+                + (eTagBytes != null ? eTagBytes.length : 0)
+                + (lastModifiedBytes != null ? lastModifiedBytes.length : 0);
+
+        if (align(length) > maxSegmentSize) {
+            Logger.getLogger(TilePackCache.class.getName()).log(Level.WARNING, "{0}: Buffer size exceeds segment size", key);
+            return;
+        }
+
+        int recordLength = (int) align(length);
+
+        lock.writeLock().lock();
+        try {
+            if (!closed) {
+                Segment segment = getWriteSegment(recordLength);
+                int offset = segment.end;
+                ByteBuffer record = getRecord(segment, offset);
+
+                record.putInt(0, recordMagic);
+                record.putInt(4, keyBytes.length);
+                record.putInt(8, eTagBytes != null ? eTagBytes.length : -1);
+                record.putInt(12, lastModifiedBytes != null ? lastModifiedBytes.length : -1);
+                record.putInt(16, buffer.length);
+                record.putLong(expirationOffset, cacheItem.getExpiration());
+                record.position(recordHeaderSize);
+                record.put(keyBytes);
+
+                if (eTagBytes != null) {
+                    record.put(eTagBytes);
+                }
+
+                if (lastModifiedBytes != null) {
+                    record.put(lastModifiedBytes);
+                }
+
+                record.put(buffer);
+                record.putInt(checksumOffset, getChecksum(record, (int) length));
+
+                segment.end += recordLength;
+                setSlot(keyBytes, segment.id, offset, recordLength, cacheItem.getExpiration());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(TilePackCache.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{key, ex});
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the total size of all live records.
+     */
+    @Override
+    public long getSize() {
+        lock.readLock().lock();
+        try {
+            return segments.values().stream().mapToLong(segment -> segment.liveBytes).sum();
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the expiration of a record from the index, without accessing its segment.
+     */
+    @Override
+    public long getExpiration(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        lock.readLock().lock();
+        try {
+            int slot = closed ? -1 : findSlot(keyBytes, getHash(keyBytes));
+
+            return slot >= 0 ? index.getLong(slot * slotSize + 24) : 0;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Updates the expiration of an existing item in place.
+     */
+    @Override
+    public void setExpiration(String key, long expiration) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        lock.writeLock().lock();
+        try {
+            int slot = closed ? -1 : findSlot(keyBytes, getHash(keyBytes));
+
+            if (slot >= 0) {
+                int slotPosition = slot * slotSize;
+                Segment segment = segments.get(index.getInt(slotPosition + 8));
+
+                segment.buffer.putLong(index.getInt(slotPosition + 12) + expirationOffset, expiration);
+                index.putLong(slotPosition + 24, expiration);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the live records of all segments, in which the ratio of live bytes to written bytes is less than
+     * maxLiveRatio, to the current write segment, and deletes these segments. Returns the number of reclaimed
+     * bytes.
+     */
+    public long compact(double maxLiveRatio) throws IOException {
+        long reclaimedBytes = 0;
+
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return 0;
+            }
+
+            List<Segment> compactedSegments = new ArrayList<>();
+            List<Segment> targetSegments = new ArrayList<>();
+
+            for (Segment segment : segments.values()) {
+                if (segment != writeSegment && segment.liveBytes < maxLiveRatio * segment.end) {
+                    compactedSegments.add(segment);
+                }
+            }
+
+            for (Segment segment : compactedSegments) {
+                for (int slot = 0; slot < indexCapacity; slot++) {
+                    int slotPosition = slot * slotSize;
+
+                    if (index.getLong(slotPosition) != 0L && index.getInt(slotPosition + 8) == segment.id) {
+                        int recordLength = index.getInt(slotPosition + 16);
+                        ByteBuffer source = getRecord(segment, index.getInt(slotPosition + 12));
+                        Segment target = getWriteSegment(recordLength);
+
+                        if (!targetSegments.contains(target)) {
+                            targetSegments.add(target);
+                        }
+
+                        source.limit(recordLength);
+                        getRecord(target, target.end).put(source);
+
+                        index.putInt(slotPosition + 8, target.id);
+                        index.putInt(slotPosition + 12, target.end);
+                        target.end += recordLength;
+                        target.liveBytes += recordLength;
+                    }
+                }
+            }
+
+            // copied records must be persistent before any compacted segment is deleted
+            //
+            targetSegments.forEach(segment -> segment.buffer.force());
+
+            for (Segment segment : compactedSegments) {
+                segments.remove(segment.id);
+                segment.channel.close(); // does not unmap the segment buffer
+                compactedFiles.add(segment.path);
+                reclaimedBytes += segment.end - segment.liveBytes;
+            }
+
+            if (!compactedSegments.isEmpty()) {
+                deleteCompactedFiles();
+                saveCompactedFiles();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        return reclaimedBytes;
+    }
+
+    /**
+     * Writes all modified segment contents to the storage device.
+     */
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            segments.values().forEach(segment -> segment.buffer.force());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes all segments, saves the index and closes the segment files.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                segments.values().forEach(segment -> segment.buffer.force());
+                saveIndex();
+
+                for (Segment segment : segments.values()) {
+                    segment.channel.close();
+                }
+
+                deleteCompactedFiles();
+                saveCompactedFiles();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Tries to delete compacted segment files. Files that are still memory-mapped may not be deletable.
+     */
+    private void deleteCompactedFiles() {
+        for (Iterator<Path> iterator = compactedFiles.iterator(); iterator.hasNext();) {
+            try {
+                Files.deleteIfExists(iterator.next());
+                iterator.remove();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    private void loadCompactedFiles() throws IOException {
+        Path compactedFile = directory.resolve(compactedFileName);
+
+        if (Files.exists(compactedFile)) {
+            for (String fileName : Files.readAllLines(compactedFile, StandardCharsets.UTF_8)) {
+                if (!fileName.isEmpty()) {
+                    compactedFiles.add(directory.resolve(fileName));
+                }
+            }
+        }
+    }
+
+    private void saveCompactedFiles() throws IOException {
+        Path compactedFile = directory.resolve(compactedFileName);
+
+        if (compactedFiles.isEmpty()) {
+            Files.deleteIfExists(compactedFile);
+        } else {
+            List<String> fileNames = new ArrayList<>();
+            compactedFiles.forEach(path -> fileNames.add(path.getFileName().toString()));
+            Files.write(compactedFile, fileNames, StandardCharsets.UTF_8);
+        }
+    }
+
+    private List<Integer> getSegmentIds() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + segmentFileExtension)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                if (compactedFiles.contains(file)) {
+                    continue;
+                }
+
+                try {
+                    ids.add(Integer.parseInt(name.substring(0, name.length() - segmentFileExtension.length())));
+                } catch (NumberFormatException ex) {
+                }
+            }
+        }
+
+        ids.sort(null);
+        return ids;
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path path = directory.resolve(String.format("%08d%s", id, segmentFileExtension));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+        try {
+            long capacity = Math.min(Math.max(channel.size(), minSegmentCapacity), maxSegmentSize);
+
+            return new Segment(id, path, channel, mapSegment(channel, capacity));
+
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private static MappedByteBuffer mapSegment(FileChannel channel, long capacity) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity); // grows the file
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Gets the segment to which a record is appended, and grows the segment file and its mapping when the
+     * record does not fit into the current capacity.
+     */
+    private Segment getWriteSegment(int recordLength) throws IOException {
+        if (writeSegment == null || writeSegment.end + recordLength > maxSegmentSize) {
+            int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+
+            writeSegment = openSegment(id);
+            segments.put(id, writeSegment);
+        }
+
+        long requiredCapacity = (long) writeSegment.end + recordLength;
+        long capacity = writeSegment.buffer.capacity();
+
+        if (requiredCapacity > capacity) {
+            while (capacity < requiredCapacity) {
+                capacity += Math.min(capacity, maxSegmentGrowth);
+            }
+
+            // the previous mapping is only released by garbage collection, so write its contents first
+            //
+            writeSegment.buffer.force();
+            writeSegment.buffer = mapSegment(writeSegment.channel, Math.min(capacity, maxSegmentSize));
+        }
+
+        return writeSegment;
+    }
+
+    private ByteBuffer getRecord(Segment segment, int offset) {
+        ByteBuffer record = segment.buffer.duplicate();
+        record.position(offset);
+        record = record.slice();
+        record.order(ByteOrder.LITTLE_ENDIAN);
+        return record;
+    }
+
+    /**
+     * Scans all segments and adds their valid records to a new index. Later records supersede earlier records
+     * with the same key. Scanning a segment stops at the first invalid record.
+     */
+    private void rebuildIndex() {
+        createIndex(minIndexCapacity);
+
+        for (Segment segment : segments.values()) {
+            int offset = 0;
+
+            int capacity = segment.buffer.capacity();
+
+            while (offset + recordHeaderSize <= capacity) {
+                ByteBuffer record = getRecord(segment, offset);
+                int length = getValidRecordLength(record, capacity - offset);
+
+                if (length < 0) {
+                    break;
+                }
+
+                byte[] keyBytes = new byte[record.getInt(4)];
+                record.position(recordHeaderSize);
+                record.get(keyBytes);
+
+                int recordLength = (int) align(length);
+                setSlot(keyBytes, segment.id, offset, recordLength, record.getLong(expirationOffset));
+                offset += recordLength;
+            }
+
+            segment.end = offset;
+        }
+    }
+
+    /**
+     * Gets the unaligned length of a record, or -1 if the record is invalid.
+     */
+    private static int getValidRecordLength(ByteBuffer record, int maxLength) {
+        if (record.getInt(0) != recordMagic) {
+            return -1;
+        }
+
+        long length = recordHeaderSize;
+
+        for (int i = 4; i <= 16; i += 4) {
+            int partLength = record.getInt(i);
+
+            if (partLength < (i == 8 || i == 12 ? -1 : 0)) {
+                return -1;
+            }
+
+            length += Math.max(partLength, 0);
+        }
+
+        if (length > maxLength || record.getInt(checksumOffset) != getChecksum(record, (int) length)) {
+            return -1;
+        }
+
+        return (int) length;
+    }
+
+    private static int getChecksum(ByteBuffer record, int length) {
+        ByteBuffer buffer = record.duplicate();
+        byte[] bytes = new byte[expirationOffset - 4 + length - recordHeaderSize];
+
+        buffer.position(4);
+        buffer.get(bytes, 0, expirationOffset - 4);
+        buffer.position(recordHeaderSize);
+        buffer.get(bytes, expirationOffset - 4, length - recordHeaderSize);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static long align(long length) {
+        return (length + 7L) & ~7L;
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long getHash(byte[] keyBytes) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+
+        for (byte b : keyBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash != 0L ? hash : 1L; // 0 marks empty slots
+    }
+
+    private void createIndex(int capacity) {
+        index = ByteBuffer.allocateDirect(capacity * slotSize).order(ByteOrder.LITTLE_ENDIAN);
+        indexCapacity = capacity;
+        entryCount = 0;
+    }
+
+    /**
+     * Finds the index slot of a key, or returns -1.
+     */
+    private int findSlot(byte[] keyBytes, long hash) {
+        int mask = indexCapacity - 1;
+
+        for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+            long slotHash = index.getLong(slot * slotSize);
+
+            if (slotHash == 0L) {
+                return -1;
+            }
+
+            if (slotHash == hash && isRecordKey(slot, keyBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean isRecordKey(int slot, byte[] keyBytes) {
+        Segment segment = segments.get(index.getInt(slot * slotSize + 8));
+        int offset = index.getInt(slot * slotSize + 12);
+
+        if (segment.buffer.getInt(offset + 4) != keyBytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (segment.buffer.get(offset + recordHeaderSize + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void setSlot(byte[] keyBytes, int segmentId, int offset, int recordLength, long expiration) {
+        long hash = getHash(keyBytes);
+        int slot = findSlot(keyBytes, hash);
+
+        if (slot >= 0) {
+            segments.get(index.getInt(slot * slotSize + 8)).liveBytes -= index.getInt(slot * slotSize + 16);
+        } else {
+            if (++entryCount > indexCapacity * 3 / 4) {
+                growIndex();
+            }
+
+            slot = findEmptySlot(hash);
+        }
+
+        int slotPosition = slot * slotSize;
+        index.putLong(slotPosition, hash);
+        index.putInt(slotPosition + 8, segmentId);
+        index.putInt(slotPosition + 12, offset);
+        index.putInt(slotPosition + 16, recordLength);
+        index.putLong(slotPosition + 24, expiration);
+
+        segments.get(segmentId).liveBytes += recordLength;
+    }
+
+    private int findEmptySlot(long hash) {
+        int mask = indexCapacity - 1;
+        int slot = (int) hash & mask;
+
+        while (index.getLong(slot * slotSize) != 0L) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void growIndex() {
+        ByteBuffer oldIndex = index;
+        int oldCapacity = indexCapacity;
+        int count = entryCount;
+
+        createIndex(oldCapacity * 2);
+        entryCount = count;
+
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            long hash = oldIndex.getLong(oldSlot * slotSize);
+
+            if (hash != 0L) {
+                ByteBuffer slotBuffer = oldIndex.duplicate();
+                slotBuffer.position(oldSlot * slotSize).limit(oldSlot * slotSize + slotSize);
+
+                ByteBuffer newSlot = index.duplicate();
+                newSlot.position(findEmptySlot(hash) * slotSize);
+                newSlot.put(slotBuffer);
+            }
+        }
+    }
+
+    // Index file layout, little endian: int32 magic, int32 max segment size, int32 segment count, per segment
+    // int32 id, int32 end and int64 live bytes, then int32 capacity, int32 entry count and the index slots.
+    // The file is deleted after it was loaded, so that the index is rebuilt when the cache is not closed properly.
+    //
+    private boolean loadIndex() {
+        Path indexFile = directory.resolve(indexFileName);
+
+        if (!Files.exists(indexFile)) {
+            return false;
+        }
+
+        try {
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+                if (buffer.getInt() != indexMagic || buffer.getInt() != maxSegmentSize) {
+                    return false;
+                }
+
+                int segmentCount = buffer.getInt();
+
+                if (segmentCount != segments.size()) {
+                    return false;
+                }
+
+                for (int i = 0; i < segmentCount; i++) {
+                    Segment segment = segments.get(buffer.getInt());
+
+                    if (segment == null) {
+                        return false;
+                    }
+
+                    segment.end = buffer.getInt();
+                    segment.liveBytes = buffer.getLong();
+                }
+
+                int capacity = buffer.getInt();
+                int count = buffer.getInt();
+
+                if (capacity < minIndexCapacity || Integer.bitCount(capacity) != 1
+                        || buffer.remaining() != capacity * slotSize) {
+                    return false;
+                }
+
+                createIndex(capacity);
+                entryCount = count;
+                index.put(buffer);
+                index.clear();
+            }
+
+            Files.delete(indexFile);
+            return true;
+
+        } catch (Exception ex) {
+            Logger.getLogger(TilePackCache.class.getName()).log(Level.WARNING, "{0}: {1}", new Object[]{indexFile, ex});
+            return false;
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        Path indexFile = directory.resolve(indexFileName);
+        Path tempFile = directory.resolve(indexFileName + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(20 + 16 * segments.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+        header.putInt(indexMagic);
+        header.putInt(maxSegmentSize);
+        header.putInt(segments.size());
+
+        for (Iterator<Segment> iterator = segments.values().iterator(); iterator.hasNext();) {
+            Segment segment = iterator.next();
+            header.putInt(segment.id);
+            header.putInt(segment.end);
+            header.putLong(segment.liveBytes);
+        }
+
+        header.putInt(indexCapacity);
+        header.putInt(entryCount);
+        header.flip();
+
+        ByteBuffer slots = index.duplicate();
+        slots.clear();
+
+        try (FileChannel channel = FileChannel.open(tempFile,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            while (slots.hasRemaining()) {
+                channel.write(slots);
+            }
+
+            channel.force(true);
+        }
+
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
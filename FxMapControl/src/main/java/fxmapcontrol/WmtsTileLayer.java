@@ -15,6 +15,7 @@ import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.concurrent.Service;
 import javafx.concurrent.Task;
+import javafx.geometry.Point2D;
 
 /**
  * Displays map tiles from a Web Map Tile Service (WMTS).
@@ -168,10 +169,21 @@ public class WmtsTileLayer extends MapTileLayerBase {
 
     private void updateTiles(WmtsTileMatrixSet tileMatrixSet) {
         ArrayList<Tile> tiles = new ArrayList<>();
+        HashMap<Integer, WmtsTileMatrixLayer> layers = new HashMap<>();
 
         getChildren().stream()
                 .map(node -> (WmtsTileMatrixLayer) node)
-                .forEach(layer -> tiles.addAll(layer.updateTiles()));
+                .forEach(layer -> {
+                    tiles.addAll(layer.updateTiles());
+                    layers.put(layer.getZoomLevel(), layer);
+                });
+
+        if (!tiles.isEmpty()) {
+            MapBase map = getMap();
+            Point2D mapCenter = map.getViewTransform().viewToMap(map.getTransformCenter());
+
+            setLoadPriorities(tiles, tile -> layers.get(tile.getZoomLevel()).getTileDistance(tile, mapCenter));
+        }
 
         WmtsTileSource tileSource = (WmtsTileSource) getTileSource();
         String sourceName = getName();
@@ -35,6 +35,22 @@ public class WmtsTileMatrixLayer extends Parent {
         return tileMatrix;
     }
 
+    public final int getZoomLevel() {
+        return zoomLevel;
+    }
+
+    /**
+     * Gets the distance in tile matrix pixels between the center of a tile and a point in map coordinates.
+     */
+    public final double getTileDistance(Tile tile, Point2D mapPoint) {
+        return new Point2D(
+                tileMatrix.getScale() * (mapPoint.getX() - tileMatrix.getTopLeft().getX()),
+                tileMatrix.getScale() * (tileMatrix.getTopLeft().getY() - mapPoint.getY()))
+                .distance(
+                        tileMatrix.getTileWidth() * (tile.getX() + 0.5),
+                        tileMatrix.getTileHeight() * (tile.getY() + 0.5));
+    }
+
     public final void setTransform(ViewTransform viewTransform) {
         // tile matrix origin in pixels
         //
@@ -91,7 +107,7 @@ public class WmtsTileMatrixLayer extends Parent {
             getChildren().clear();
 
         } else {
-            getChildren().setAll(tiles.stream()
+            MapTileLayerBase.updateChildren(getChildren(), tiles.stream()
                     .map(tile -> {
                         ImageView imageView = tile.getImageView();
                         imageView.setX(tileMatrix.getTileWidth() * (tile.getX() - xMin));
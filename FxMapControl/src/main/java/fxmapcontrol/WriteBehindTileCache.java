@@ -0,0 +1,309 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmapcontrol;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ITileCache decorator that writes items asynchronously to a backing ITileCache on a dedicated I/O thread.
+ * Pending writes of the same key are coalesced, and are returned by get until they have been written.
+ * <p>
+ * The total buffer size of pending writes is limited by the maxPendingSize property. When the limit is reached,
+ * set blocks until enough pending items have been written.
+ */
+public class WriteBehindTileCache implements ITileCache, AutoCloseable {
+
+    private static final long defaultMaxPendingSize = 16L * 1024 * 1024; // 16 MB
+    private static final int maxBatchSize = 64;
+
+    /**
+     * A pending write. A null cacheItem buffer means that only the expiration is updated.
+     */
+    private static class PendingWrite {
+
+        public final CacheItem cacheItem;
+
+        public PendingWrite(CacheItem cacheItem) {
+            this.cacheItem = cacheItem;
+        }
+
+        public boolean isExpirationUpdate() {
+            return cacheItem.getBuffer() == null;
+        }
+
+        public long getSize() {
+            return isExpirationUpdate() ? 0 : cacheItem.getBuffer().length;
+        }
+    }
+
+    private final LinkedHashMap<String, PendingWrite> pendingWrites = new LinkedHashMap<>();
+    private final HashMap<String, PendingWrite> writingWrites = new HashMap<>(); // currently written by the I/O thread
+    private final ITileCache backingCache;
+    private final long maxPendingSize;
+    private final Thread writerThread;
+    private long pendingSize;
+    private boolean closed;
+
+    public WriteBehindTileCache(ITileCache backingCache) {
+        this(backingCache, defaultMaxPendingSize);
+    }
+
+    public WriteBehindTileCache(ITileCache backingCache, long maxPendingSize) {
+        if (backingCache == null) {
+            throw new IllegalArgumentException("backingCache must not be null");
+        }
+
+        this.backingCache = backingCache;
+        this.maxPendingSize = maxPendingSize;
+
+        writerThread = new Thread(this::writePending, "WriteBehindTileCache");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public final ITileCache getBackingCache() {
+        return backingCache;
+    }
+
+    public final long getMaxPendingSize() {
+        return maxPendingSize;
+    }
+
+    @Override
+    public CacheItem get(String key) {
+        PendingWrite pendingWrite;
+        PendingWrite writingWrite;
+
+        synchronized (pendingWrites) {
+            pendingWrite = pendingWrites.get(key);
+            writingWrite = writingWrites.get(key);
+        }
+
+        if (pendingWrite != null && !pendingWrite.isExpirationUpdate()) {
+            return pendingWrite.cacheItem;
+        }
+
+        CacheItem cacheItem = writingWrite != null && !writingWrite.isExpirationUpdate()
+                ? writingWrite.cacheItem
+                : backingCache.get(key);
+
+        PendingWrite expirationUpdate = pendingWrite != null ? pendingWrite : writingWrite;
+
+        if (cacheItem != null && expirationUpdate != null && expirationUpdate.isExpirationUpdate()) {
+            cacheItem = new CacheItem(cacheItem.getBuffer(), expirationUpdate.cacheItem.getExpiration(),
+                    cacheItem.getETag(), cacheItem.getLastModified());
+        }
+
+        return cacheItem;
+    }
+
+    /**
+     * Gets the expiration of a pending item, or of an item in the backing cache. A pending expiration update is
+     * only reported when the item exists.
+     */
+    @Override
+    public long getExpiration(String key) {
+        PendingWrite pendingWrite;
+        PendingWrite writingWrite;
+
+        synchronized (pendingWrites) {
+            pendingWrite = pendingWrites.get(key);
+            writingWrite = writingWrites.get(key);
+        }
+
+        if (pendingWrite != null && !pendingWrite.isExpirationUpdate()) {
+            return pendingWrite.cacheItem.getExpiration();
+        }
+
+        long expiration = writingWrite != null && !writingWrite.isExpirationUpdate()
+                ? writingWrite.cacheItem.getExpiration()
+                : backingCache.getExpiration(key);
+
+        PendingWrite expirationUpdate = pendingWrite != null ? pendingWrite : writingWrite;
+
+        if (expiration != 0 && expirationUpdate != null && expirationUpdate.isExpirationUpdate()) {
+            expiration = expirationUpdate.cacheItem.getExpiration();
+        }
+
+        return expiration;
+    }
+
+    @Override
+    public long getSize() {
+        return backingCache.getSize();
+    }
+
+    @Override
+    public void set(String key, byte[] buffer, long expiration) {
+        set(key, new CacheItem(buffer, expiration));
+    }
+
+    /**
+     * Adds a pending write. After close, the item is written synchronously, without blocking concurrent calls.
+     */
+    @Override
+    public void set(String key, CacheItem cacheItem) {
+        PendingWrite pendingWrite = new PendingWrite(cacheItem);
+        boolean write;
+
+        synchronized (pendingWrites) {
+            while (!closed && pendingSize > 0 && pendingSize + pendingWrite.getSize() > maxPendingSize) {
+                try {
+                    pendingWrites.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            write = closed;
+
+            if (!closed) {
+                addPendingWrite(key, pendingWrite);
+            }
+        }
+
+        if (write) {
+            backingCache.set(key, cacheItem);
+        }
+    }
+
+    @Override
+    public void setExpiration(String key, long expiration) {
+        boolean write;
+
+        synchronized (pendingWrites) {
+            write = closed;
+
+            if (!closed) {
+                PendingWrite pendingWrite = pendingWrites.get(key);
+
+                if (pendingWrite != null && !pendingWrite.isExpirationUpdate()) {
+                    CacheItem cacheItem = pendingWrite.cacheItem;
+
+                    addPendingWrite(key, new PendingWrite(new CacheItem(
+                            cacheItem.getBuffer(), expiration, cacheItem.getETag(), cacheItem.getLastModified())));
+                } else {
+                    addPendingWrite(key, new PendingWrite(new CacheItem(null, expiration)));
+                }
+            }
+        }
+
+        if (write) {
+            backingCache.setExpiration(key, expiration);
+        }
+    }
+
+    /**
+     * Blocks until all pending items have been written to the backing cache.
+     */
+    public void flush() throws InterruptedException {
+        synchronized (pendingWrites) {
+            while (!pendingWrites.isEmpty() || !writingWrites.isEmpty()) {
+                pendingWrites.wait();
+            }
+        }
+    }
+
+    /**
+     * Writes all pending items and stops the I/O thread. Later calls of set and setExpiration write
+     * synchronously to the backing cache, outside of the lock that guards the pending writes. When the calling thread is interrupted, close returns with the
+     * interrupt status set, and the I/O thread still writes all pending items.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (pendingWrites) {
+            closed = true;
+            pendingWrites.notifyAll();
+        }
+
+        try {
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void addPendingWrite(String key, PendingWrite pendingWrite) {
+        PendingWrite oldWrite = pendingWrites.remove(key); // re-insert at the end of the queue
+
+        if (oldWrite != null) {
+            pendingSize -= oldWrite.getSize();
+        }
+
+        pendingWrites.put(key, pendingWrite);
+        pendingSize += pendingWrite.getSize();
+        pendingWrites.notifyAll();
+    }
+
+    private void writePending() {
+        List<Map.Entry<String, PendingWrite>> batch = new ArrayList<>(maxBatchSize);
+
+        while (true) {
+            synchronized (pendingWrites) {
+                while (!closed && pendingWrites.isEmpty()) {
+                    try {
+                        pendingWrites.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+
+                if (pendingWrites.isEmpty()) { // closed
+                    return;
+                }
+
+                Iterator<Map.Entry<String, PendingWrite>> iterator = pendingWrites.entrySet().iterator();
+
+                while (batch.size() < maxBatchSize && iterator.hasNext()) {
+                    Map.Entry<String, PendingWrite> entry = iterator.next();
+                    batch.add(new AbstractMap.SimpleEntry<>(entry));
+                    writingWrites.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+            }
+
+            for (Map.Entry<String, PendingWrite> entry : batch) {
+                try {
+                    CacheItem cacheItem = entry.getValue().cacheItem;
+
+                    if (entry.getValue().isExpirationUpdate()) {
+                        backingCache.setExpiration(entry.getKey(), cacheItem.getExpiration());
+                    } else {
+                        backingCache.set(entry.getKey(), cacheItem);
+                    }
+                } catch (Exception ex) {
+                    Logger.getLogger(WriteBehindTileCache.class.getName()).log(Level.WARNING, "{0}: {1}",
+                            new Object[]{entry.getKey(), ex});
+                }
+            }
+
+            synchronized (pendingWrites) {
+                for (Map.Entry<String, PendingWrite> entry : batch) {
+                    pendingSize -= entry.getValue().getSize();
+                    writingWrites.remove(entry.getKey());
+                }
+
+                pendingWrites.notifyAll();
+            }
+
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * FX Map Control - https://github.com/ClemensFischer/FX-Map-Control
+ * © 2020 Clemens Fischer
+ */
+package fxmaphttpclient;
+
+import fxmapcontrol.IHttpTransport;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+
+/**
+ * IHttpTransport implementation based on java.net.http.HttpClient (Java 11 or later).
+ * <p>
+ * Requests are sent asynchronously and use HTTP/2 when the server supports it, so that requests to the same
+ * host are multiplexed over a single pooled connection. The number of concurrent requests per host is limited
+ * by the maxRequestsPerHost value. Additional requests are queued and sent in the order of their submission.
+ * Cancelled requests are removed from the queue, or aborted when they are already running.
+ * <p>
+ * Use with TileImageLoader.setHttpTransport(new HttpClientTransport()).
+ */
+public class HttpClientTransport implements IHttpTransport {
+
+    private static final int defaultMaxRequestsPerHost = 8;
+    private static final int defaultConnectTimeout = 10; // seconds
+
+    private final ConcurrentHashMap<String, HostQueue> hostQueues = new ConcurrentHashMap<>();
+    private final HttpClient httpClient;
+    private final int maxRequestsPerHost;
+
+    public HttpClientTransport() {
+        this(defaultMaxRequestsPerHost);
+    }
+
+    public HttpClientTransport(int maxRequestsPerHost) {
+        this(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(defaultConnectTimeout))
+                .build(),
+                maxRequestsPerHost);
+    }
+
+    public HttpClientTransport(HttpClient httpClient, int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost must be greater than zero");
+        }
+
+        this.httpClient = httpClient;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    public final HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public final int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> get(URL url, Map<String, String> headers, int timeout) {
+        return get(url, headers, timeout, null);
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> get(URL url, Map<String, String> headers, int timeout,
+            TransferProgress progress) {
+
+        HttpRequest.Builder requestBuilder;
+
+        try {
+            requestBuilder = HttpRequest.newBuilder(url.toURI())
+                    .timeout(Duration.ofMillis(timeout))
+                    .GET();
+        } catch (URISyntaxException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+
+        if (headers != null) {
+            headers.forEach(requestBuilder::header);
+        }
+
+        HttpRequest request = requestBuilder.build();
+
+        String host = url.getProtocol() + "://" + url.getAuthority();
+
+        return hostQueues.computeIfAbsent(host, h -> new HostQueue()).send(request, getBodyHandler(progress));
+    }
+
+    /**
+     * Gets a BodyHandler that receives the response body as byte array and reports the transfer progress
+     * of successful responses.
+     */
+    private static BodyHandler<byte[]> getBodyHandler(TransferProgress progress) {
+        if (progress == null) {
+            return BodyHandlers.ofByteArray();
+        }
+
+        return responseInfo -> {
+            BodySubscriber<byte[]> subscriber = BodySubscribers.ofByteArray();
+
+            if (responseInfo.statusCode() != 200) {
+                return subscriber;
+            }
+
+            progress.setContentLength(responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1));
+
+            return new BodySubscriber<byte[]>() {
+                @Override
+                public CompletionStage<byte[]> getBody() {
+                    return subscriber.getBody();
+                }
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscriber.onSubscribe(subscription);
+                }
+
+                @Override
+                public void onNext(List<ByteBuffer> buffers) {
+                    progress.addReceivedBytes(buffers.stream().mapToLong(ByteBuffer::remaining).sum());
+                    subscriber.onNext(buffers);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    subscriber.onError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    subscriber.onComplete();
+                }
+            };
+        };
+    }
+
+    /**
+     * A request that waits in a HostQueue.
+     */
+    private static class QueuedRequest {
+
+        public final HttpRequest request;
+        public final BodyHandler<byte[]> bodyHandler;
+        public final CompletableFuture<HttpResponse> responseFuture = new CompletableFuture<>();
+
+        public QueuedRequest(HttpRequest request, BodyHandler<byte[]> bodyHandler) {
+            this.request = request;
+            this.bodyHandler = bodyHandler;
+        }
+    }
+
+    /**
+     * Limits the number of concurrent requests to a host.
+     */
+    private class HostQueue {
+
+        private final ArrayDeque<QueuedRequest> pendingRequests = new ArrayDeque<>();
+        private int activeRequests;
+
+        public CompletableFuture<HttpResponse> send(HttpRequest request, BodyHandler<byte[]> bodyHandler) {
+            QueuedRequest queuedRequest = new QueuedRequest(request, bodyHandler);
+            boolean sendNow = false;
+
+            synchronized (this) {
+                if (activeRequests < maxRequestsPerHost) {
+                    activeRequests++;
+                    sendNow = true;
+                } else {
+                    pendingRequests.add(queuedRequest);
+                }
+            }
+
+            if (sendNow) {
+                sendAsync(queuedRequest);
+            } else {
+                queuedRequest.responseFuture.whenComplete((response, exception) -> {
+                    if (queuedRequest.responseFuture.isCancelled()) {
+                        synchronized (this) {
+                            pendingRequests.remove(queuedRequest);
+                        }
+                    }
+                });
+            }
+
+            return queuedRequest.responseFuture;
+        }
+
+        /**
+         * Sends a request, unless it was cancelled meanwhile. Returns false when the request was not sent.
+         */
+        private boolean sendAsync(QueuedRequest queuedRequest) {
+            CompletableFuture<HttpResponse> responseFuture = queuedRequest.responseFuture;
+
+            if (responseFuture.isDone()) {
+                return false;
+            }
+
+            CompletableFuture<java.net.http.HttpResponse<byte[]>> sendFuture
+                    = httpClient.sendAsync(queuedRequest.request, queuedRequest.bodyHandler);
+
+            responseFuture.whenComplete((response, exception) -> {
+                if (responseFuture.isCancelled()) {
+                    sendFuture.cancel(true); // aborts the exchange in Java 16 or later
+                }
+            });
+
+            sendFuture.whenComplete((response, exception) -> {
+                requestCompleted();
+
+                if (exception != null) {
+                    responseFuture.completeExceptionally(exception);
+                } else {
+                    responseFuture.complete(new HttpResponse(
+                            response.statusCode(),
+                            null, // reason phrases are not available in HTTP/2
+                            response.headers().map(),
+                            response.statusCode() == 200 ? response.body() : null));
+                }
+            });
+
+            return true;
+        }
+
+        /**
+         * Sends the next queued request. Requests that were cancelled after they were dequeued are skipped.
+         */
+        private void requestCompleted() {
+            while (true) {
+                QueuedRequest nextRequest;
+
+                synchronized (this) {
+                    nextRequest = pendingRequests.poll();
+
+                    if (nextRequest == null) {
+                        activeRequests--;
+                        return;
+                    }
+                }
+
+                if (sendAsync(nextRequest)) {
+                    return;
+                }
+            }
+        }
+    }
+}
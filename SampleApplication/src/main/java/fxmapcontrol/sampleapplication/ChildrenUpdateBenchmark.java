@@ -0,0 +1,111 @@
+package fxmapcontrol.sampleapplication;
+
+import fxmapcontrol.MapTileLayer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import javafx.collections.ObservableList;
+import javafx.scene.Group;
+import javafx.scene.Node;
+import javafx.scene.image.ImageView;
+
+/**
+ * Compares the time for replacing the children of a tile layer by ObservableList.setAll with the time for
+ * updating them by MapTileLayerBase.updateChildren, in one invocation. The node lists are ordered like those
+ * of MapTileLayer, i.e. background levels first and each level row by row, while the tile matrix is panned back
+ * and forth by one tile per update. Does not need a running JavaFX toolkit, so CSS and layout of the nodes are
+ * not included.
+ */
+public class ChildrenUpdateBenchmark {
+
+    private static final int zoomLevel = 12;
+    private static final int updatesPerRun = 2000;
+    private static final int warmupRuns = 3;
+    private static final int measuredRuns = 5;
+
+    private static final HashMap<Long, ImageView> imageViews = new HashMap<>();
+
+    private static final class ChildrenUpdater extends MapTileLayer {
+
+        static void update(ObservableList<Node> children, List<Node> nodes) {
+            updateChildren(children, nodes);
+        }
+    }
+
+    private static List<Node> getNodes(int xMin, int yMin, int columns, int rows, int backgroundLevels) {
+        List<Node> nodes = new ArrayList<>();
+
+        for (int z = zoomLevel - backgroundLevels; z <= zoomLevel; z++) {
+            int levels = zoomLevel - z;
+            int x1 = xMin >> levels;
+            int x2 = (xMin + columns - 1) >> levels;
+            int y1 = yMin >> levels;
+            int y2 = (yMin + rows - 1) >> levels;
+
+            for (int y = y1; y <= y2; y++) {
+                for (int x = x1; x <= x2; x++) {
+                    long key = ((long) z << 56) | ((long) x << 28) | y;
+                    nodes.add(imageViews.computeIfAbsent(key, k -> new ImageView()));
+                }
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Returns the average time per update in microseconds.
+     */
+    private static double run(boolean setAll, int columns, int rows, int backgroundLevels, boolean vertical) {
+        Group group = new Group();
+        long nanos = 0;
+
+        for (int i = 0; i < updatesPerRun; i++) {
+            int offset = (i / 20) % 2 == 0 ? i % 20 : 20 - i % 20; // pan back and forth
+            int xMin = vertical ? 1000 : 1000 + offset;
+            int yMin = vertical ? 1000 + offset : 1000;
+            List<Node> nodes = getNodes(xMin, yMin, columns, rows, backgroundLevels);
+
+            long start = System.nanoTime();
+
+            if (setAll) {
+                group.getChildren().setAll(nodes);
+            } else {
+                ChildrenUpdater.update(group.getChildren(), nodes);
+            }
+
+            nanos += System.nanoTime() - start;
+
+            if (!group.getChildren().equals(nodes)) {
+                throw new IllegalStateException("children do not match the tile nodes");
+            }
+        }
+
+        return nanos / 1000d / updatesPerRun;
+    }
+
+    public static void main(String[] args) {
+        int[][] configurations = {{8, 5, 5}, {16, 10, 5}, {16, 10, 8}}; // columns, rows, background levels
+
+        for (int[] c : configurations) {
+            for (boolean vertical : new boolean[]{false, true}) {
+                for (int i = 0; i < warmupRuns; i++) {
+                    run(true, c[0], c[1], c[2], vertical);
+                    run(false, c[0], c[1], c[2], vertical);
+                }
+
+                double setAll = 0d;
+                double updateChildren = 0d;
+
+                for (int i = 0; i < measuredRuns; i++) {
+                    setAll += run(true, c[0], c[1], c[2], vertical);
+                    updateChildren += run(false, c[0], c[1], c[2], vertical);
+                }
+
+                System.out.printf("%dx%d tiles, %d background levels, %s pan: setAll %.1f us, updateChildren %.1f us%n",
+                        c[0], c[1], c[2], vertical ? "vertical" : "horizontal",
+                        setAll / measuredRuns, updateChildren / measuredRuns);
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ import fxmapcontrol.WebMercatorProjection;
 import fxmapcontrol.WmsImageLayer;
 import fxmapcontrol.WmtsTileLayer;
 import fxmapcontrol.WorldMercatorProjection;
+import fxmapcontrol.WriteBehindTileCache;
 //import fxmapprojections.GeoToolsProjection;
 import java.net.URL;
 import java.util.HashMap;
@@ -125,7 +126,7 @@ public class FXMLController implements Initializable {
 //                + "AUTHORITY[\"EPSG\",\"32661\"]]");
 
 
-        TileImageLoader.setCache(new ImageFileCache());
+        TileImageLoader.setCache(new WriteBehindTileCache(new ImageFileCache()));
 
         map.targetZoomLevelProperty().bindBidirectional(zoomSlider.valueProperty());
         map.targetHeadingProperty().bindBidirectional(headingSlider.valueProperty());
@@ -1,5 +1,8 @@
 package fxmapcontrol.sampleapplication;
 
+import fxmapcontrol.ITileCache;
+import fxmapcontrol.TileImageLoader;
+import fxmapcontrol.WriteBehindTileCache;
 import javafx.application.Application;
 import static javafx.application.Application.launch;
 import javafx.fxml.FXMLLoader;
@@ -22,6 +25,17 @@ public class MainApp extends Application {
         stage.show();
     }
 
+    @Override
+    public void stop() {
+        // write the tiles that are still pending in the WriteBehindTileCache before the daemon writer
+        // thread terminates with the JVM
+        ITileCache cache = TileImageLoader.getCache();
+
+        if (cache instanceof WriteBehindTileCache) {
+            ((WriteBehindTileCache) cache).close();
+        }
+    }
+
     /**
      * The main() method is ignored in correctly deployed JavaFX application.
      * main() serves only as fallback in case the application can not be
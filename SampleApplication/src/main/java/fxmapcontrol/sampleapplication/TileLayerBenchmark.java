@@ -0,0 +1,86 @@
+package fxmapcontrol.sampleapplication;
+
+import fxmapcontrol.Location;
+import fxmapcontrol.Map;
+import fxmapcontrol.MapTileLayer;
+import fxmapcontrol.TileSource;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.stage.Stage;
+
+/**
+ * Measures the JavaFX Application Thread time per tile layer update, i.e. the time for updating the tiles and the
+ * children of a MapTileLayer, plus CSS and layout, while the map is panned by one tile per update. Tile images are
+ * not loaded. Run before and after a change of the tile layer update code to compare the results. Pass "canvas" as
+ * argument to measure the Canvas rendering mode of MapTileLayer.
+ */
+public class TileLayerBenchmark extends Application {
+
+    private static final int warmupUpdates = 200;
+    private static final int measuredUpdates = 1000;
+    private static final double zoomLevel = 12;
+
+    private static class BenchmarkTileLayer extends MapTileLayer {
+
+        public BenchmarkTileLayer() {
+            super((tiles, tileSource, tileSourceName) -> { }); // do not load tile images
+            setTileSource(new TileSource("http://localhost/{z}/{x}/{y}.png"));
+            setMaxBackgroundLevels(5);
+        }
+
+        public void update() {
+            updateTileLayer();
+        }
+    }
+
+    @Override
+    public void start(Stage stage) {
+        Map map = new Map();
+        BenchmarkTileLayer tileLayer = new BenchmarkTileLayer();
+        tileLayer.setCanvasRendering(getParameters().getRaw().contains("canvas"));
+
+        map.getChildren().add(tileLayer);
+        map.setZoomLevel(zoomLevel);
+        map.setCenter(new Location(53.5, 8.2));
+
+        stage.setTitle("Tile Layer Benchmark");
+        stage.setScene(new Scene(map, 1920, 1200));
+        stage.show();
+
+        Platform.runLater(() -> {
+            double tileWidth = 360d / (1 << (int) zoomLevel); // degrees longitude
+
+            run(map, tileLayer, warmupUpdates, tileWidth);
+            long nanos = run(map, tileLayer, measuredUpdates, tileWidth);
+
+            System.out.printf("%d children, %.1f microseconds per update%n",
+                    tileLayer.getChildrenUnmodifiable().size(), nanos / 1000d / measuredUpdates);
+
+            Platform.exit();
+        });
+    }
+
+    private static long run(Map map, BenchmarkTileLayer tileLayer, int updates, double tileWidth) {
+        long nanos = 0;
+
+        for (int i = 0; i < updates; i++) {
+            Location center = map.getCenter();
+            double direction = (i / 20) % 2 == 0 ? 1d : -1d; // pan back and forth
+
+            map.setCenter(new Location(center.getLatitude(), center.getLongitude() + direction * tileWidth));
+
+            long start = System.nanoTime();
+            tileLayer.update();
+            map.applyCss();
+            map.layout();
+            nanos += System.nanoTime() - start;
+        }
+
+        return nanos;
+    }
+
+    public static void main(String[] args) {
+        launch(args);
+    }
+}